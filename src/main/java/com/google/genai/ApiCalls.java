@@ -0,0 +1,50 @@
+package com.google.genai;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+
+/**
+ * Tracks the OkHttp clients created by {@link ApiClient} so that in-flight calls tagged with
+ * {@link #CALL_ID_HEADER} can be cancelled from outside the SDK, which otherwise only cancels the
+ * returned {@code CompletableFuture} and leaves the HTTP call running.
+ */
+public final class ApiCalls {
+
+  /** Request header used to tag a single logical call. */
+  public static final String CALL_ID_HEADER = "x-call-id";
+
+  private static final Set<OkHttpClient> clients =
+          Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+  private ApiCalls() {}
+
+  static void register(OkHttpClient client) {
+    clients.add(client);
+  }
+
+  /** Cancels every queued or running call whose request carries the given call id. */
+  public static void cancel(String callId) {
+    if (callId == null) {
+      return;
+    }
+    OkHttpClient[] snapshot;
+    synchronized (clients) {
+      snapshot = clients.toArray(new OkHttpClient[0]);
+    }
+    for (OkHttpClient client : snapshot) {
+      for (Call call : client.dispatcher().queuedCalls()) {
+        if (callId.equals(call.request().header(CALL_ID_HEADER))) {
+          call.cancel();
+        }
+      }
+      for (Call call : client.dispatcher().runningCalls()) {
+        if (callId.equals(call.request().header(CALL_ID_HEADER))) {
+          call.cancel();
+        }
+      }
+    }
+  }
+}
@@ -375,13 +375,18 @@ abstract class ApiClient {
               builder.dispatcher(dispatcher);
             });
 
+    // Shared dispatcher, connection pool, protocols and socket timeouts configured by the application
+    HttpTuning.apply(builder);
+
     String proxyHost = System.getProperty("socksProxyHost");
     String proxyPort = System.getProperty("socksProxyPort");
         if (StringUtils.isNotBlank(proxyHost) && StringUtils.isNotBlank(proxyPort)) {
           builder.proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(proxyHost, Integer.parseInt(proxyPort))));
         }
 
-        return builder.build();
+        OkHttpClient client = builder.build();
+        ApiCalls.register(client);
+        return client;
   }
 
   /**
@@ -0,0 +1,98 @@
+package com.google.genai;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide OkHttp tuning for clients built by {@link ApiClient}. Once {@link #configure} is
+ * called, every client shares one {@link Dispatcher} and {@link ConnectionPool} sized by the given
+ * settings, instead of OkHttp's defaults (64 requests, 5 per host, 5 idle connections).
+ */
+public final class HttpTuning {
+
+  /** Tuning values; a zero timeout leaves the SDK default (no timeout) in place. */
+  public static final class Settings {
+    public int maxRequests = 64;
+    public int maxRequestsPerHost = 5;
+    public int maxIdleConnections = 5;
+    public long keepAliveSeconds = 300;
+    public boolean preferHttp2 = true;
+    public long connectTimeoutMillis = 0;
+    public long readTimeoutMillis = 0;
+    public long writeTimeoutMillis = 0;
+  }
+
+  private static volatile Settings settings;
+  private static volatile Dispatcher dispatcher;
+  private static volatile ConnectionPool connectionPool;
+
+  private HttpTuning() {}
+
+  /** Installs the settings for clients created afterwards. */
+  public static synchronized void configure(Settings value) {
+    Dispatcher d = new Dispatcher();
+    d.setMaxRequests(value.maxRequests);
+    d.setMaxRequestsPerHost(value.maxRequestsPerHost);
+    dispatcher = d;
+    connectionPool =
+            new ConnectionPool(value.maxIdleConnections, value.keepAliveSeconds, TimeUnit.SECONDS);
+    settings = value;
+  }
+
+  static void apply(OkHttpClient.Builder builder) {
+    Settings s = settings;
+    if (s == null) {
+      return;
+    }
+    builder.dispatcher(dispatcher);
+    builder.connectionPool(connectionPool);
+    builder.protocols(
+            s.preferHttp2
+                    ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                    : Collections.singletonList(Protocol.HTTP_1_1));
+    if (s.connectTimeoutMillis > 0) {
+      builder.connectTimeout(Duration.ofMillis(s.connectTimeoutMillis));
+    }
+    if (s.readTimeoutMillis > 0) {
+      builder.readTimeout(Duration.ofMillis(s.readTimeoutMillis));
+    }
+    if (s.writeTimeoutMillis > 0) {
+      builder.writeTimeout(Duration.ofMillis(s.writeTimeoutMillis));
+    }
+  }
+
+  /** Point-in-time view of the shared pool and dispatcher. */
+  public static final class Utilisation {
+    public final int connections;
+    public final int idleConnections;
+    public final int runningCalls;
+    public final int queuedCalls;
+
+    Utilisation(int connections, int idleConnections, int runningCalls, int queuedCalls) {
+      this.connections = connections;
+      this.idleConnections = idleConnections;
+      this.runningCalls = runningCalls;
+      this.queuedCalls = queuedCalls;
+    }
+  }
+
+  /** Returns the current utilisation, or null before {@link #configure} is called. */
+  public static Utilisation utilisation() {
+    Dispatcher d = dispatcher;
+    ConnectionPool pool = connectionPool;
+    if (d == null || pool == null) {
+      return null;
+    }
+    return new Utilisation(
+            pool.connectionCount(),
+            pool.idleConnectionCount(),
+            d.runningCallsCount(),
+            d.queuedCallsCount());
+  }
+}
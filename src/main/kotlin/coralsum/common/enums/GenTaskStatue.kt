@@ -1,6 +1,7 @@
 package coralsum.common.enums
 
 enum class GenTaskStatue {
+    QUEUED,
     COMPLETED,
     PROCESSING,
     FAILED,
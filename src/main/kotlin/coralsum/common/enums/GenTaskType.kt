@@ -0,0 +1,6 @@
+package coralsum.common.enums
+
+enum class GenTaskType {
+    GENERATE,
+    UPSCALE
+}
@@ -0,0 +1,9 @@
+package coralsum.common.enums
+
+import io.swagger.v3.oas.annotations.media.Schema
+
+@Schema(description = "模版图片位置")
+enum class IdeaImageSlot(val dir: String) {
+    ORIGINAL("original"),
+    EFFECT("effect");
+}
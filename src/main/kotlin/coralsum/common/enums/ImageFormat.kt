@@ -3,9 +3,20 @@ package coralsum.common.enums
 import io.swagger.v3.oas.annotations.media.Schema
 
 @Schema(description = "图片格式")
-enum class ImageFormat(val ext: String) {
-    PNG("png"),
-    JPG("jpg");
+enum class ImageFormat(val ext: String, val mimeType: String) {
+    PNG("png", "image/png"),
+    JPG("jpg", "image/jpeg");
 
     override fun toString() = ext
+
+    companion object {
+        fun ofMimeType(mimeType: String?): ImageFormat? {
+            val mime = mimeType?.substringBefore(';')?.trim()?.lowercase() ?: return null
+            return when (mime) {
+                "image/png" -> PNG
+                "image/jpeg", "image/jpg" -> JPG
+                else -> null
+            }
+        }
+    }
 }
@@ -20,4 +20,12 @@ data class GenerativeImageCostEvent(
     val success: Boolean,
     val upscaylScale: Int,
     val modelType: ModelType,
+    /** 仅放大已有图片，不含模型调用费用 */
+    val upscaleOnly: Boolean = false,
+    /** 非空时扣费明细仅关联这些图片引用，而非记录下的全部引用 */
+    val imageRefs: List<String>? = null,
+    /** 对冲请求次数，对冲成本由平台承担，不计入扣费 */
+    val hedgeCount: Int = 0,
+    /** 对冲请求额外消耗的输入 token */
+    val hedgeInputTokens: Int = 0,
 )
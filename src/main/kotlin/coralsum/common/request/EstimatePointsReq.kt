@@ -22,4 +22,6 @@ data class EstimatePointsReq(
     val success: Boolean,
     @field:Min(1) @field:Max(8) val upscaylScale: Int = 1,
     val modelType: ModelType,
+    /** 仅放大已有图片：只评估放大与流量费用，imageSizeBytes 为原图体积 */
+    val upscaleOnly: Boolean = false,
 )
@@ -9,4 +9,6 @@ import io.swagger.v3.oas.annotations.media.Schema
 data class GenTaskResultResponse(
     @Schema(description = "任务状态") val status: GenTaskStatue,
     @Schema(description = "生成结果") val result: GenResultResponse? = null,
+    @Schema(description = "排队位置，0 表示下一个执行") val queuePosition: Int? = null,
+    @Schema(description = "预计完成秒数") val etaSeconds: Long? = null,
 )
@@ -0,0 +1,22 @@
+package coralsum.common.response
+
+import io.micronaut.serde.annotation.Serdeable
+import io.swagger.v3.oas.annotations.media.Schema
+
+@Schema(description = "批量上传结果")
+@Serdeable
+data class UploadBatchResponse(
+    @Schema(description = "图片上传标识") val sid: String,
+    @Schema(description = "各文件的上传结果，顺序与请求一致") val files: List<UploadFileResult>,
+)
+
+@Schema(description = "单个文件的上传结果")
+@Serdeable
+data class UploadFileResult(
+    @Schema(description = "在请求中的序号") val index: Int,
+    @Schema(description = "文件名") val filename: String?,
+    @Schema(description = "是否成功") val success: Boolean,
+    @Schema(description = "发送给模型的字节数") val size: Int? = null,
+    @Schema(description = "原始字节数") val originalSize: Int? = null,
+    @Schema(description = "失败原因") val error: String? = null,
+)
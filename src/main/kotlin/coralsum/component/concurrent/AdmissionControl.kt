@@ -0,0 +1,72 @@
+package coralsum.component.concurrent
+
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.AdmissionConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 接口入口的准入控制：按公平调度器各通道近期的单位耗时与当前积压估算排队时间，
+ * 超过目标时在扣费校验、建临时目录之前直接返回 429，过载时请求几乎不占用资源。
+ */
+@Singleton
+class AdmissionControl(
+    private val config: AdmissionConfig,
+    private val scheduler: FairShareScheduler,
+) {
+
+    private val admitted = AtomicLong()
+    private val shed = AtomicLong()
+
+    @Volatile
+    private var lastPredictedMs = 0L
+
+    /**
+     * 同步生成：每个候选占用一次模型调用
+     */
+    fun admitGenerate(candidateCount: Int) {
+        check(scheduler.calls.predictedWaitMs(candidateCount), config.generateSloSeconds)
+    }
+
+    /**
+     * 异步任务：先等待任务槽位，再与同步请求一起竞争模型调用
+     */
+    fun admitTask(candidateCount: Int) {
+        val taskWait = scheduler.tasks.predictedWaitMs(1)
+        val callWait = scheduler.calls.predictedWaitMs(candidateCount)
+        val predicted = if (taskWait == null && callWait == null) null else (taskWait ?: 0) + (callWait ?: 0)
+        check(predicted, config.taskSloSeconds)
+    }
+
+    private fun check(predictedMs: Long?, sloSeconds: Long) {
+        if (!config.enabled || predictedMs == null) {
+            admitted.incrementAndGet()
+            return
+        }
+        lastPredictedMs = predictedMs
+        val sloMs = sloSeconds * 1000
+        if (predictedMs <= sloMs) {
+            admitted.incrementAndGet()
+            return
+        }
+        shed.incrementAndGet()
+        val retryAfter = ((predictedMs - sloMs + 999) / 1000).coerceIn(1, config.maxRetryAfterSeconds)
+        throw TooManyRequestsException("当前排队较长，请稍后再试", retryAfter)
+    }
+
+    fun stats(): AdmissionStats = AdmissionStats(
+        enabled = config.enabled,
+        admitted = admitted.get(),
+        shed = shed.get(),
+        lastPredictedMs = lastPredictedMs,
+    )
+}
+
+@Serdeable
+data class AdmissionStats(
+    val enabled: Boolean,
+    val admitted: Long,
+    val shed: Long,
+    val lastPredictedMs: Long,
+)
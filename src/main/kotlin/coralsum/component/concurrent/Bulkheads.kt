@@ -0,0 +1,84 @@
+package coralsum.component.concurrent
+
+import coralsum.config.BulkheadConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Runnable
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * 按依赖划分的协程调度器舱壁：每个舱壁是 Dispatchers.IO 上独立的 limitedParallelism 视图，
+ * 互不共享 IO 的 64 线程上限，一个依赖变慢只会占满自己的舱壁。
+ * 舱壁只约束阻塞调用；非阻塞的模型调用不占线程，并发由 ModelCallGovernor 按模型分道限制。
+ */
+@Singleton
+class Bulkheads(
+    config: BulkheadConfig,
+) {
+
+    val geminiFiles = Bulkhead("geminiFiles", config.geminiFiles)
+    val upscale = Bulkhead("upscale", config.upscale)
+    val storage = Bulkhead("storage", config.storage)
+    val db = Bulkhead("db", config.db)
+
+    private val all = listOf(geminiFiles, upscale, storage, db)
+
+    fun stats(): Map<String, BulkheadStats> = all.associate { it.name to it.stats() }
+}
+
+/**
+ * 带饱和度统计的调度器：记录正在执行与已派发待执行的任务数
+ */
+class Bulkhead(val name: String, private val parallelism: Int) : CoroutineDispatcher() {
+
+    private val delegate = Dispatchers.IO.limitedParallelism(parallelism)
+
+    private val running = AtomicInteger()
+    private val pending = AtomicInteger()
+    private val peakPending = AtomicInteger()
+    private val dispatched = AtomicLong()
+
+    override fun isDispatchNeeded(context: CoroutineContext): Boolean = delegate.isDispatchNeeded(context)
+
+    override fun dispatch(context: CoroutineContext, block: Runnable) {
+        dispatched.incrementAndGet()
+        peakPending.accumulateAndGet(pending.incrementAndGet()) { a, b -> maxOf(a, b) }
+        delegate.dispatch(context, Runnable {
+            pending.decrementAndGet()
+            running.incrementAndGet()
+            try {
+                block.run()
+            } finally {
+                running.decrementAndGet()
+            }
+        })
+    }
+
+    fun stats(): BulkheadStats {
+        val active = running.get()
+        return BulkheadStats(
+            parallelism = parallelism,
+            running = active,
+            pending = pending.get(),
+            peakPending = peakPending.get(),
+            dispatched = dispatched.get(),
+            saturation = active.toDouble() / parallelism,
+        )
+    }
+
+    override fun toString(): String = "Bulkhead($name)"
+}
+
+@Serdeable
+data class BulkheadStats(
+    val parallelism: Int,
+    val running: Int,
+    val pending: Int,
+    val peakPending: Int,
+    val dispatched: Long,
+    val saturation: Double,
+)
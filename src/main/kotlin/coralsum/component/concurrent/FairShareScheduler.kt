@@ -0,0 +1,266 @@
+package coralsum.component.concurrent
+
+import coralsum.common.enums.MembershipTier
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.FairShareConfig
+import coralsum.config.GenerateTaskConfig
+import coralsum.config.GeneratorConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
+
+/**
+ * 调度归属：按 uid 计算公平份额，按会员层级决定权重与在途上限
+ */
+data class ScheduleOwner(
+    val uid: String,
+    val tier: MembershipTier,
+)
+
+@Serdeable
+data class QueueEstimate(
+    /** 前面还有多少个排队单位，0 表示下一个执行 */
+    val position: Int,
+    /** 预计完成秒数，尚无耗时样本时为空 */
+    val etaSeconds: Long?,
+)
+
+/**
+ * 按会员层级加权的公平调度器，分两条通道：
+ * calls 约束模型调用（按候选计），tasks 约束异步任务的执行槽位。
+ */
+@Singleton
+class FairShareScheduler(
+    config: FairShareConfig,
+    generatorConfig: GeneratorConfig,
+    taskConfig: GenerateTaskConfig,
+) {
+
+    val calls = FairShareLane(
+        name = "calls",
+        capacity = generatorConfig.maxInFlight,
+        maxQueued = generatorConfig.maxQueued,
+        retryAfterSeconds = generatorConfig.retryAfterSeconds,
+        agingSeconds = config.agingSeconds,
+        weight = { tierValue(it, config.freeWeight, config.plusWeight, config.proWeight) },
+        perUserCap = { tierValue(it, config.freeMaxInFlight, config.plusMaxInFlight, config.proMaxInFlight) },
+    )
+
+    // 任务已落库，排队不设上限
+    val tasks = FairShareLane(
+        name = "tasks",
+        capacity = taskConfig.workers,
+        maxQueued = Int.MAX_VALUE,
+        retryAfterSeconds = generatorConfig.retryAfterSeconds,
+        agingSeconds = config.agingSeconds,
+        weight = { tierValue(it, config.freeWeight, config.plusWeight, config.proWeight) },
+        perUserCap = { tierValue(it, config.freeMaxTasks, config.plusMaxTasks, config.proMaxTasks) },
+    )
+
+    private fun tierValue(tier: MembershipTier, free: Int, plus: Int, pro: Int): Int = when (tier) {
+        MembershipTier.FREE -> free
+        MembershipTier.PLUS -> plus
+        MembershipTier.PRO -> pro
+    }.coerceAtLeast(1)
+
+    fun stats(): Map<String, FairShareStats> = mapOf(calls.name to calls.stats(), tasks.name to tasks.stats())
+}
+
+/**
+ * 起始时间公平排队（SFQ）：每个用户维护虚拟完成时间，新请求的标签取 max(全局虚拟时间, 该用户上次完成时间)，
+ * 每服务一个单位该用户的完成时间前进 1/权重；空出槽位时在未达用户上限的排队项中选标签（扣除老化补偿后）最小者。
+ */
+class FairShareLane(
+    val name: String,
+    private val capacity: Int,
+    private val maxQueued: Int,
+    private val retryAfterSeconds: Long,
+    private val agingSeconds: Long,
+    private val weight: (MembershipTier) -> Int,
+    private val perUserCap: (MembershipTier) -> Int,
+) {
+
+    private val lock = Any()
+
+    private var virtualTime = 0.0
+    private var active = 0
+    private var sequence = 0L
+    private val users = HashMap<String, UserShare>()
+    private val waiting = ArrayList<Waiter>()
+
+    // 单位持有时长的指数滑动平均（毫秒），用于估算排队时间
+    @Volatile
+    private var serviceMs = 0.0
+
+    private val granted = AtomicLong()
+    private val rejected = AtomicLong()
+    private val maxWaitMs = AtomicLong()
+
+    /**
+     * 在公平份额内执行；key 用于查询排队位置，通常为任务 sid
+     */
+    suspend fun <T> withSlot(owner: ScheduleOwner, key: String? = null, block: suspend () -> T): T {
+        acquire(owner, key)
+        val started = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            release(owner.uid)
+            val elapsed = (System.nanoTime() - started) / 1_000_000.0
+            serviceMs = if (serviceMs == 0.0) elapsed else serviceMs * 0.8 + elapsed * 0.2
+        }
+    }
+
+    private suspend fun acquire(owner: ScheduleOwner, key: String?) {
+        val waiter = synchronized(lock) {
+            if (waiting.size >= maxQueued) {
+                rejected.incrementAndGet()
+                throw TooManyRequestsException("生成请求过多，请稍后再试", retryAfterSeconds)
+            }
+            val share = users.getOrPut(owner.uid) { UserShare() }
+            val start = maxOf(virtualTime, share.finish)
+            share.finish = start + 1.0 / weight(owner.tier)
+            share.queued++
+            Waiter(owner, key, start, sequence++, System.nanoTime()).also {
+                waiting.add(it)
+                dispatch()
+            }
+        }
+        try {
+            waiter.granted.await()
+        } catch (e: CancellationException) {
+            synchronized(lock) {
+                if (waiting.remove(waiter)) {
+                    users[owner.uid]?.let { it.queued-- }
+                    cleanup()
+                } else {
+                    // 取消与授予同时发生，归还已分配的槽位
+                    releaseLocked(owner.uid)
+                }
+            }
+            throw e
+        }
+        val waitedMs = (System.nanoTime() - waiter.enqueuedAt) / 1_000_000
+        maxWaitMs.accumulateAndGet(waitedMs) { a, b -> maxOf(a, b) }
+    }
+
+    private fun release(uid: String) {
+        synchronized(lock) { releaseLocked(uid) }
+    }
+
+    private fun releaseLocked(uid: String) {
+        active--
+        users[uid]?.let { it.inFlight-- }
+        cleanup()
+        dispatch()
+    }
+
+    /**
+     * 须在持有锁时调用
+     */
+    private fun dispatch() {
+        val now = System.nanoTime()
+        while (active < capacity && waiting.isNotEmpty()) {
+            val next = waiting
+                .filter { users.getValue(it.owner.uid).inFlight < perUserCap(it.owner.tier) }
+                .minWithOrNull(order(now)) ?: return
+            waiting.remove(next)
+            val share = users.getValue(next.owner.uid)
+            share.queued--
+            share.inFlight++
+            active++
+            virtualTime = maxOf(virtualTime, next.tag)
+            granted.incrementAndGet()
+            next.granted.complete(Unit)
+        }
+    }
+
+    /**
+     * 用户无在途、无排队且完成时间已被全局虚拟时间追上时移除，避免状态无限增长
+     */
+    private fun cleanup() {
+        users.values.removeIf { it.inFlight <= 0 && it.queued <= 0 && it.finish <= virtualTime }
+    }
+
+    private fun order(now: Long): Comparator<Waiter> =
+        compareBy<Waiter> { it.effectiveTag(now) }.thenBy { it.seq }
+
+    private fun Waiter.effectiveTag(now: Long): Double {
+        if (agingSeconds <= 0) return tag
+        val waitedSeconds = (now - enqueuedAt) / 1_000_000_000.0
+        return tag - waitedSeconds / agingSeconds
+    }
+
+    /**
+     * 估算 key 对应排队项的位置与完成时间；未在排队时返回 null
+     */
+    fun estimate(key: String): QueueEstimate? {
+        val position = synchronized(lock) {
+            val ordered = waiting.sortedWith(order(System.nanoTime()))
+            ordered.indexOfFirst { it.key == key }
+        }
+        if (position < 0) return null
+        val avg = serviceMs
+        val eta = if (avg > 0) ceil((position / capacity + 1) * avg / 1000).toLong() else null
+        return QueueEstimate(position, eta)
+    }
+
+    /**
+     * 预计新加入 units 个单位需要等待的毫秒数；尚无耗时样本时返回 null
+     */
+    fun predictedWaitMs(units: Int): Long? {
+        val avg = serviceMs
+        if (avg <= 0) return null
+        val ahead = synchronized(lock) { active + waiting.size } + units - capacity
+        if (ahead <= 0) return 0
+        return (ceil(ahead.toDouble() / capacity) * avg).toLong()
+    }
+
+    val queued: Int
+        get() = synchronized(lock) { waiting.size }
+
+    fun stats(): FairShareStats {
+        val (running, queued, tracked) = synchronized(lock) { Triple(active, waiting.size, users.size) }
+        return FairShareStats(
+            capacity = capacity,
+            active = running,
+            queued = queued,
+            users = tracked,
+            granted = granted.get(),
+            rejected = rejected.get(),
+            avgServiceMs = serviceMs.toLong(),
+            maxWaitMs = maxWaitMs.get(),
+        )
+    }
+
+    private class UserShare {
+        var finish = 0.0
+        var inFlight = 0
+        var queued = 0
+    }
+
+    private class Waiter(
+        val owner: ScheduleOwner,
+        val key: String?,
+        val tag: Double,
+        val seq: Long,
+        val enqueuedAt: Long,
+    ) {
+        val granted = CompletableDeferred<Unit>()
+    }
+}
+
+@Serdeable
+data class FairShareStats(
+    val capacity: Int,
+    val active: Int,
+    val queued: Int,
+    val users: Int,
+    val granted: Long,
+    val rejected: Long,
+    val avgServiceMs: Long,
+    val maxWaitMs: Long,
+)
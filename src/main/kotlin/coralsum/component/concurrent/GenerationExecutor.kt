@@ -0,0 +1,63 @@
+package coralsum.component.concurrent
+
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.GeneratorConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 模型调用执行器：模型调用本身非阻塞，直接在调用方协程中挂起，不占用线程；
+ * 在途数量由公平调度器的 calls 通道约束，排队已满时抛出 [TooManyRequestsException]。
+ */
+@Singleton
+class GenerationExecutor(
+    private val config: GeneratorConfig,
+    private val scheduler: FairShareScheduler,
+) {
+
+    private val log = logger<GenerationExecutor>()
+
+    private val inFlight = AtomicInteger()
+    private val completed = AtomicLong()
+
+    init {
+        log.info("image generator maxInFlight={}, maxQueued={}", config.maxInFlight, config.maxQueued)
+    }
+
+    /**
+     * 在公平份额内执行挂起任务；按用户与会员层级排队，排队已满时抛出 429
+     */
+    suspend fun <T> withLimit(owner: ScheduleOwner, key: String? = null, block: suspend () -> T): T {
+        return scheduler.calls.withSlot(owner, key) {
+            inFlight.incrementAndGet()
+            try {
+                block().also { completed.incrementAndGet() }
+            } finally {
+                inFlight.decrementAndGet()
+            }
+        }
+    }
+
+    fun stats(): GenerationExecutorStats {
+        val lane = scheduler.calls.stats()
+        return GenerationExecutorStats(
+            maxInFlight = config.maxInFlight,
+            inFlight = inFlight.get(),
+            waiting = lane.queued,
+            completed = completed.get(),
+            rejected = lane.rejected,
+        )
+    }
+}
+
+@Serdeable
+data class GenerationExecutorStats(
+    val maxInFlight: Int,
+    val inFlight: Int,
+    val waiting: Int,
+    val completed: Long,
+    val rejected: Long,
+)
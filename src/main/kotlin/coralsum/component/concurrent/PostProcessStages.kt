@@ -0,0 +1,72 @@
+package coralsum.component.concurrent
+
+import coralsum.config.GeneratorConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.sync.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 候选后处理的阶段并发上限：编码受 CPU 约束，上传受对象存储连接约束。
+ * 与舱壁不同，阶段限制的是同时处于该阶段的候选数，而不是执行线程。
+ */
+@Singleton
+class PostProcessStages(
+    config: GeneratorConfig,
+) {
+
+    val encode = Stage("encode", config.encodeConcurrency.takeIf { it > 0 } ?: Runtime.getRuntime().availableProcessors())
+    val upload = Stage("upload", config.uploadConcurrency.coerceAtLeast(1))
+
+    private val all = listOf(encode, upload)
+
+    fun stats(): Map<String, StageStats> = all.associate { it.name to it.stats() }
+}
+
+/**
+ * 带饱和度统计的信号量：记录正在执行与等待许可的数量
+ */
+class Stage(val name: String, private val permits: Int) {
+
+    private val semaphore = Semaphore(permits)
+
+    private val waiting = AtomicInteger()
+    private val completed = AtomicLong()
+
+    suspend fun <T> withPermit(block: suspend () -> T): T {
+        waiting.incrementAndGet()
+        try {
+            semaphore.acquire()
+        } finally {
+            waiting.decrementAndGet()
+        }
+        try {
+            return block().also { completed.incrementAndGet() }
+        } finally {
+            semaphore.release()
+        }
+    }
+
+    fun stats(): StageStats {
+        val active = permits - semaphore.availablePermits
+        return StageStats(
+            permits = permits,
+            active = active,
+            waiting = waiting.get(),
+            completed = completed.get(),
+            saturation = active.toDouble() / permits,
+        )
+    }
+
+    override fun toString(): String = "Stage($name)"
+}
+
+@Serdeable
+data class StageStats(
+    val permits: Int,
+    val active: Int,
+    val waiting: Int,
+    val completed: Long,
+    val saturation: Double,
+)
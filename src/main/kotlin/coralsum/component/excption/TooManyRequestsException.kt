@@ -0,0 +1,6 @@
+package coralsum.component.excption
+
+class TooManyRequestsException(
+    override val message: String? = null,
+    val retryAfterSeconds: Long? = null,
+) : RuntimeException()
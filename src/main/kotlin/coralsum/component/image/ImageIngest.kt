@@ -0,0 +1,142 @@
+package coralsum.component.image
+
+import coralsum.component.excption.BusinessException
+import coralsum.config.ImageIngestConfig
+import io.micronaut.http.multipart.StreamingFileUpload
+import jakarta.inject.Singleton
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.HexFormat
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * 按文件头魔数识别的图片格式，不信任文件名扩展名
+ */
+enum class ImageKind(val mimeType: String, val ext: String) {
+    PNG("image/png", "png"),
+    JPEG("image/jpeg", "jpg"),
+    WEBP("image/webp", "webp");
+
+    companion object {
+        const val HEADER_SIZE = 12
+
+        fun sniff(header: ByteArray, length: Int): ImageKind? {
+            fun at(i: Int) = if (i < length) header[i].toInt() and 0xFF else -1
+            return when {
+                at(0) == 0x89 && at(1) == 0x50 && at(2) == 0x4E && at(3) == 0x47 &&
+                        at(4) == 0x0D && at(5) == 0x0A && at(6) == 0x1A && at(7) == 0x0A -> PNG
+
+                at(0) == 0xFF && at(1) == 0xD8 && at(2) == 0xFF -> JPEG
+                // RIFF....WEBP
+                at(0) == 0x52 && at(1) == 0x49 && at(2) == 0x46 && at(3) == 0x46 &&
+                        at(8) == 0x57 && at(9) == 0x45 && at(10) == 0x42 && at(11) == 0x50 -> WEBP
+
+                else -> null
+            }
+        }
+    }
+}
+
+/**
+ * 已接收的上传：小文件留在内存，大文件暂存在临时文件；使用完毕须 close 删除临时文件
+ */
+class IngestedImage internal constructor(
+    val kind: ImageKind,
+    val size: Long,
+    val sha256: String,
+    private val memory: ByteArray?,
+    val file: Path?,
+) : Closeable {
+
+    fun openStream(): InputStream = memory?.let { ByteArrayInputStream(it) } ?: Files.newInputStream(file!!)
+
+    fun readBytes(): ByteArray = memory ?: Files.readAllBytes(file!!)
+
+    override fun close() {
+        file?.let { runCatching { Files.deleteIfExists(it) } }
+    }
+}
+
+/**
+ * 流式接收图片上传：以池化的定长缓冲区边读边识别格式、计算摘要，超过大小上限立即中止；
+ * 内存中至多暂存 spoolThresholdBytes，其余写入临时文件，单个上传的堆占用不随文件大小增长。
+ */
+@Singleton
+class ImageIngest(
+    private val config: ImageIngestConfig,
+) {
+
+    private val buffers = ArrayBlockingQueue<ByteArray>(config.bufferPoolSize.coerceAtLeast(1))
+
+    suspend fun ingest(
+        upload: StreamingFileUpload,
+        maxBytes: Long,
+        accepted: Set<ImageKind>,
+        tooLargeMessage: String = "图片过大",
+        unsupportedMessage: String = "不支持的图片格式",
+    ): IngestedImage = withContext(Dispatchers.IO) {
+        val buffer = buffers.poll() ?: ByteArray(config.bufferSize)
+        val digest = MessageDigest.getInstance("SHA-256")
+        val header = ByteArray(ImageKind.HEADER_SIZE)
+        var headerLength = 0
+        var kind: ImageKind? = null
+        val memory = ByteArrayOutputStream()
+        var file: Path? = null
+        var out: OutputStream = memory
+        var size = 0L
+        try {
+            upload.asInputStream().use { input ->
+                while (true) {
+                    val n = input.read(buffer)
+                    if (n < 0) break
+                    if (n == 0) continue
+                    size += n
+                    if (size > maxBytes) throw BusinessException(tooLargeMessage)
+                    if (kind == null) {
+                        val take = minOf(n, header.size - headerLength)
+                        System.arraycopy(buffer, 0, header, headerLength, take)
+                        headerLength += take
+                        if (headerLength == header.size) kind = accept(header, headerLength, accepted, unsupportedMessage)
+                    }
+                    digest.update(buffer, 0, n)
+                    if (file == null && size > config.spoolThresholdBytes) {
+                        file = Files.createTempFile("coralsum-upload-", ".part")
+                        out = Files.newOutputStream(file!!)
+                        memory.writeTo(out)
+                        memory.reset()
+                    }
+                    out.write(buffer, 0, n)
+                }
+            }
+            out.close()
+            val resolved = kind ?: accept(header, headerLength, accepted, unsupportedMessage)
+            IngestedImage(
+                kind = resolved,
+                size = size,
+                sha256 = HexFormat.of().formatHex(digest.digest()),
+                memory = if (file == null) memory.toByteArray() else null,
+                file = file,
+            )
+        } catch (e: Throwable) {
+            runCatching { out.close() }
+            file?.let { runCatching { Files.deleteIfExists(it) } }
+            if (e is IOException) throw BusinessException("图片上传失败", e)
+            throw e
+        } finally {
+            buffers.offer(buffer)
+        }
+    }
+
+    private fun accept(header: ByteArray, length: Int, accepted: Set<ImageKind>, message: String): ImageKind {
+        return ImageKind.sniff(header, length)?.takeIf { it in accepted } ?: throw BusinessException(message)
+    }
+}
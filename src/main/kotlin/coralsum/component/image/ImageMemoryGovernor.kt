@@ -0,0 +1,167 @@
+package coralsum.component.image
+
+import coralsum.config.ImageMemoryConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.util.concurrent.atomic.AtomicLong
+import javax.imageio.ImageIO
+
+/**
+ * 图片内存预算（像素预算）：按 宽 × 高 × 通道数 估算每项解码/编码工作的内存占用，
+ * 以带权信号量方式准入，超出预算的工作按 FIFO 挂起等待；单项超过总预算时按总预算计，独占执行。
+ */
+@Singleton
+class ImageMemoryGovernor(
+    private val config: ImageMemoryConfig,
+) {
+
+    val budgetBytes: Long = config.budgetBytes.takeIf { it > 0 } ?: (Runtime.getRuntime().maxMemory() / 4)
+
+    private val lock = Any()
+    private var used = 0L
+    private val waiters = ArrayDeque<Waiter>()
+
+    private val peak = AtomicLong()
+    private val admitted = AtomicLong()
+    private val queued = AtomicLong()
+    private val tiled = AtomicLong()
+
+    private class Waiter(val weight: Long, val cont: CancellableContinuation<Unit>)
+
+    data class Dimension(val width: Int, val height: Int) {
+        val pixels: Long get() = width.toLong() * height
+    }
+
+    /**
+     * 只读取图片头部获取尺寸，不解码像素
+     */
+    fun probe(bytes: ByteArray): Dimension? = probe(ByteArrayInputStream(bytes))
+
+    fun probe(stream: InputStream): Dimension? {
+        return try {
+            ImageIO.createImageInputStream(stream).use { input ->
+                val readers = ImageIO.getImageReaders(input)
+                if (!readers.hasNext()) return null
+                val reader = readers.next()
+                try {
+                    reader.setInput(input, true, true)
+                    Dimension(reader.getWidth(0), reader.getHeight(0))
+                } finally {
+                    reader.dispose()
+                }
+            }
+        } catch (_: Exception) {
+            null
+        }
+    }
+
+    fun estimate(dimension: Dimension, channels: Int = 4, copies: Int = 1): Long {
+        return dimension.pixels * channels * copies
+    }
+
+    /**
+     * 放大输出像素是否超过阈值，需要走分块路径
+     */
+    fun requiresTiling(dimension: Dimension, scale: Int): Boolean {
+        return dimension.pixels * scale * scale > config.tiledThresholdPixels
+    }
+
+    /**
+     * 记录一次分块放大
+     */
+    fun recordTiled() {
+        tiled.incrementAndGet()
+    }
+
+    val tileSize: Int get() = config.tileSize
+
+    suspend fun <T> withBudget(bytes: Long, block: suspend () -> T): T {
+        val weight = bytes.coerceIn(0, budgetBytes)
+        acquire(weight)
+        try {
+            return block()
+        } finally {
+            release(weight)
+        }
+    }
+
+    private suspend fun acquire(weight: Long) {
+        synchronized(lock) {
+            if (waiters.isEmpty() && used + weight <= budgetBytes) {
+                grant(weight)
+                return
+            }
+            queued.incrementAndGet()
+        }
+        suspendCancellableCoroutine { cont ->
+            val waiter = Waiter(weight, cont)
+            cont.invokeOnCancellation {
+                // 仍在排队时移出队列；已被授予的预算由 resume 的 onCancellation 归还
+                synchronized(lock) {
+                    if (waiters.remove(waiter)) dispatch()
+                }
+            }
+            synchronized(lock) {
+                // 入队前预算可能已被释放
+                if (waiters.isEmpty() && used + weight <= budgetBytes) {
+                    grant(weight)
+                    cont.resume(Unit) { release(weight) }
+                } else {
+                    waiters.addLast(waiter)
+                }
+            }
+        }
+    }
+
+    private fun release(weight: Long) {
+        synchronized(lock) {
+            used -= weight
+            dispatch()
+        }
+    }
+
+    /**
+     * 须在持有 lock 时调用；按 FIFO 唤醒，队首放不下时不越过，避免大图饿死
+     */
+    private fun dispatch() {
+        while (waiters.isNotEmpty() && used + waiters.first().weight <= budgetBytes) {
+            val waiter = waiters.removeFirst()
+            grant(waiter.weight)
+            waiter.cont.resume(Unit) { release(waiter.weight) }
+        }
+    }
+
+    private fun grant(weight: Long) {
+        used += weight
+        admitted.incrementAndGet()
+        peak.accumulateAndGet(used) { a, b -> maxOf(a, b) }
+    }
+
+    fun stats(): ImageMemoryStats {
+        val (usedBytes, waiting) = synchronized(lock) { used to waiters.size }
+        return ImageMemoryStats(
+            budgetBytes = budgetBytes,
+            usedBytes = usedBytes,
+            peakBytes = peak.get(),
+            waiting = waiting,
+            admitted = admitted.get(),
+            queued = queued.get(),
+            tiled = tiled.get(),
+        )
+    }
+}
+
+@Serdeable
+data class ImageMemoryStats(
+    val budgetBytes: Long,
+    val usedBytes: Long,
+    val peakBytes: Long,
+    val waiting: Int,
+    val admitted: Long,
+    val queued: Long,
+    val tiled: Long,
+)
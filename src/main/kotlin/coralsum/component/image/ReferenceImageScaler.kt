@@ -0,0 +1,280 @@
+package coralsum.component.image
+
+import coralsum.common.enums.MediaResolution
+import coralsum.config.ReferenceImageConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import java.awt.RenderingHints
+import java.awt.geom.AffineTransform
+import java.awt.image.BufferedImage
+import java.io.BufferedInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.atomic.AtomicLong
+import javax.imageio.IIOImage
+import javax.imageio.ImageIO
+import javax.imageio.ImageWriteParam
+
+/**
+ * 参考图片入库前按媒体分辨率缩小并重新压缩：解码时按整数倍降采样读取，再逐级减半、最后一次双线性插值缩放到目标长边，
+ * 同时减少上传带宽、模型延迟与输入 token。重新编码会丢失 EXIF，缩放后按 EXIF 方向把像素转正。
+ * 处理在 Dispatchers.Default 与图片内存预算内执行，结果不小于原图时保留原图。
+ */
+@Singleton
+class ReferenceImageScaler(
+    private val config: ReferenceImageConfig,
+    private val imageMemoryGovernor: ImageMemoryGovernor,
+) {
+
+    private val log = logger<ReferenceImageScaler>()
+
+    private val processed = AtomicLong()
+    private val scaled = AtomicLong()
+    private val originalBytes = AtomicLong()
+    private val reducedBytes = AtomicLong()
+
+    /**
+     * 缩小后的参考图片；originalSize 为原始字节数
+     */
+    class ScaledImage(val bytes: ByteArray, val mimeType: String, val originalSize: Int)
+
+    /**
+     * 返回缩小后的图片；无需缩小或缩小后不更小时返回 null，调用方直接使用原图
+     */
+    suspend fun scale(source: IngestedImage, resolution: MediaResolution?): ScaledImage? {
+        val originalSize = source.size.toInt()
+        if (!config.enabled) return null
+        val dimension = source.openStream().use { imageMemoryGovernor.probe(it) } ?: return null
+        val maxEdge = config.maxEdge(resolution)
+        val longEdge = maxOf(dimension.width, dimension.height)
+        if (longEdge <= maxEdge) return record(originalSize, originalSize, null)
+        // 降采样解码图与逐级减半的中间图合计不超过原图像素的 4/3，另加目标图与转正后的副本各一份
+        val ratio = maxEdge.toDouble() / longEdge
+        val target = ImageMemoryGovernor.Dimension(
+            (dimension.width * ratio).toInt().coerceAtLeast(1),
+            (dimension.height * ratio).toInt().coerceAtLeast(1)
+        )
+        val weight = imageMemoryGovernor.estimate(dimension) * 4 / 3 + imageMemoryGovernor.estimate(target, copies = 2)
+        val result = try {
+            imageMemoryGovernor.withBudget(weight) {
+                withContext(Dispatchers.Default) { resize(source, longEdge, maxEdge, target) }
+            }
+        } catch (e: Exception) {
+            log.warn("failed to downscale reference image: {}", e.message)
+            null
+        }
+        if (result == null || result.bytes.size >= originalSize) return record(originalSize, originalSize, null)
+        scaled.incrementAndGet()
+        return record(originalSize, result.bytes.size, result)
+    }
+
+    private fun record(originalSize: Int, reducedSize: Int, image: ScaledImage?): ScaledImage? {
+        processed.incrementAndGet()
+        originalBytes.addAndGet(originalSize.toLong())
+        reducedBytes.addAndGet(reducedSize.toLong())
+        return image
+    }
+
+    private fun resize(
+        input: IngestedImage,
+        longEdge: Int,
+        maxEdge: Int,
+        target: ImageMemoryGovernor.Dimension,
+    ): ScaledImage? {
+        val source = input.openStream().use { decodeSubsampled(it, (longEdge / (maxEdge * 2)).coerceAtLeast(1)) }
+            ?: return null
+        val alpha = source.colorModel.hasAlpha()
+        val type = if (alpha) BufferedImage.TYPE_INT_ARGB else BufferedImage.TYPE_INT_RGB
+        // 单次双线性缩放超过 2 倍会跳过源像素产生锯齿，先逐级减半再缩放到目标尺寸
+        var current = source
+        while (current.width / 2 >= target.width && current.height / 2 >= target.height) {
+            current = draw(current, current.width / 2, current.height / 2, type)
+        }
+        var canvas = draw(current, target.width, target.height, type)
+        if (input.kind == ImageKind.JPEG) {
+            val orientation = input.openStream().use { readOrientation(it) }
+            if (orientation != 1) canvas = orient(canvas, orientation, type)
+        }
+        val originalSize = input.size.toInt()
+        return if (alpha) ScaledImage(encodePng(canvas), ImageKind.PNG.mimeType, originalSize)
+        else ScaledImage(encodeJpeg(canvas), ImageKind.JPEG.mimeType, originalSize)
+    }
+
+    private fun draw(image: BufferedImage, width: Int, height: Int, type: Int): BufferedImage {
+        val canvas = BufferedImage(width, height, type)
+        val g = canvas.createGraphics()
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED)
+            g.drawImage(image, 0, 0, width, height, null)
+        } finally {
+            g.dispose()
+        }
+        return canvas
+    }
+
+    /**
+     * 按 EXIF 方向（2-8）翻转或旋转像素，5-8 交换宽高
+     */
+    private fun orient(image: BufferedImage, orientation: Int, type: Int): BufferedImage {
+        val w = image.width.toDouble()
+        val h = image.height.toDouble()
+        val t = AffineTransform()
+        when (orientation) {
+            2 -> {
+                t.scale(-1.0, 1.0); t.translate(-w, 0.0)
+            }
+
+            3 -> {
+                t.translate(w, h); t.rotate(Math.PI)
+            }
+
+            4 -> {
+                t.scale(1.0, -1.0); t.translate(0.0, -h)
+            }
+
+            5 -> {
+                t.rotate(-Math.PI / 2); t.scale(-1.0, 1.0)
+            }
+
+            6 -> {
+                t.translate(h, 0.0); t.rotate(Math.PI / 2)
+            }
+
+            7 -> {
+                t.scale(-1.0, 1.0); t.translate(-h, w); t.rotate(3 * Math.PI / 2)
+            }
+
+            8 -> {
+                t.translate(0.0, w); t.rotate(3 * Math.PI / 2)
+            }
+
+            else -> return image
+        }
+        val swap = orientation >= 5
+        val canvas = BufferedImage(if (swap) image.height else image.width, if (swap) image.width else image.height, type)
+        val g = canvas.createGraphics()
+        try {
+            g.drawImage(image, t, null)
+        } finally {
+            g.dispose()
+        }
+        return canvas
+    }
+
+    /**
+     * 读取 JPEG APP1 段中 IFD0 的方向标签（0x0112），没有或无法解析时返回 1
+     */
+    private fun readOrientation(stream: InputStream): Int {
+        return try {
+            val input = DataInputStream(BufferedInputStream(stream))
+            if (input.readUnsignedShort() != 0xFFD8) return 1
+            var orientation: Int? = null
+            while (orientation == null) {
+                val marker = input.readUnsignedShort()
+                // SOS 之后是图像数据，EXIF 只会出现在它之前
+                if (marker and 0xFF00 != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) return 1
+                val length = input.readUnsignedShort() - 2
+                if (length < 0) return 1
+                if (marker != 0xFFE1) {
+                    input.skipNBytes(length.toLong())
+                    continue
+                }
+                val segment = ByteArray(length)
+                input.readFully(segment)
+                // 非 EXIF 的 APP1（如 XMP）继续查找
+                orientation = exifOrientation(segment)
+            }
+            orientation ?: 1
+        } catch (_: Exception) {
+            1
+        }
+    }
+
+    private fun exifOrientation(segment: ByteArray): Int? {
+        // "Exif\0\0" 之后是 TIFF 头：字节序、魔数 42、IFD0 偏移
+        if (segment.size < 14 || String(segment, 0, 4, Charsets.US_ASCII) != "Exif") return null
+        val tiff = ByteBuffer.wrap(segment, 6, segment.size - 6).slice()
+        tiff.order(
+            when (String(segment, 6, 2, Charsets.US_ASCII)) {
+                "II" -> ByteOrder.LITTLE_ENDIAN
+                "MM" -> ByteOrder.BIG_ENDIAN
+                else -> return null
+            }
+        )
+        val ifd = tiff.getInt(4)
+        if (ifd < 8 || ifd + 2 > tiff.limit()) return null
+        val count = tiff.getShort(ifd).toInt() and 0xFFFF
+        for (i in 0 until count) {
+            val entry = ifd + 2 + i * 12
+            if (entry + 12 > tiff.limit()) return null
+            if (tiff.getShort(entry).toInt() and 0xFFFF == 0x0112) {
+                return (tiff.getShort(entry + 8).toInt() and 0xFFFF).takeIf { it in 1..8 } ?: 1
+            }
+        }
+        return 1
+    }
+
+    /**
+     * 按整数步长降采样读取像素，只解码需要的行列，大图的解码耗时与内存随步长平方下降
+     */
+    private fun decodeSubsampled(stream: InputStream, step: Int): BufferedImage? {
+        ImageIO.createImageInputStream(stream).use { input ->
+            val readers = ImageIO.getImageReaders(input)
+            if (!readers.hasNext()) return null
+            val reader = readers.next()
+            try {
+                reader.setInput(input, true, true)
+                val param = reader.defaultReadParam
+                if (step > 1) param.setSourceSubsampling(step, step, 0, 0)
+                return reader.read(0, param)
+            } finally {
+                reader.dispose()
+            }
+        }
+    }
+
+    private fun encodePng(image: BufferedImage): ByteArray {
+        val out = ByteArrayOutputStream()
+        ImageIO.write(image, "png", out)
+        return out.toByteArray()
+    }
+
+    private fun encodeJpeg(image: BufferedImage): ByteArray {
+        val writer = ImageIO.getImageWritersByFormatName("jpg").next()
+        val out = ByteArrayOutputStream()
+        try {
+            ImageIO.createImageOutputStream(out).use { output ->
+                writer.output = output
+                val param = writer.defaultWriteParam
+                param.compressionMode = ImageWriteParam.MODE_EXPLICIT
+                param.compressionQuality = config.jpegQuality
+                writer.write(null, IIOImage(image, null, null), param)
+            }
+        } finally {
+            writer.dispose()
+        }
+        return out.toByteArray()
+    }
+
+    fun stats(): ReferenceImageStats = ReferenceImageStats(
+        processed = processed.get(),
+        scaled = scaled.get(),
+        originalBytes = originalBytes.get(),
+        reducedBytes = reducedBytes.get(),
+    )
+}
+
+@Serdeable
+data class ReferenceImageStats(
+    val processed: Long,
+    val scaled: Long,
+    val originalBytes: Long,
+    val reducedBytes: Long,
+)
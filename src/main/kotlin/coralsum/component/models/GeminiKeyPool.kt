@@ -0,0 +1,200 @@
+package coralsum.component.models
+
+import cn.hutool.crypto.digest.DigestUtil
+import com.google.genai.errors.ApiException
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.GoogleConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import java.util.concurrent.TimeUnit
+
+/**
+ * Gemini 密钥池：每次调用路由到仍有配额且负载最低的密钥，按响应中的 usageMetadata 统计每分钟请求与 token，
+ * 返回配额错误的密钥暂停使用一段时间。上传的文件只能由上传它的密钥访问，引用中携带密钥标识以保持亲和。
+ */
+@Singleton
+class GeminiKeyPool(
+    private val config: GoogleConfig,
+) {
+
+    private val log = logger<GeminiKeyPool>()
+
+    private val lock = Any()
+
+    /**
+     * 以密钥摘要前缀作为稳定标识，调整配置顺序不影响已上传文件的路由
+     */
+    val keys: List<KeyState> = config.geminiKeys().map { KeyState(DigestUtil.sha256Hex(it).take(8), it) }
+
+    private val byId = keys.associateBy { it.id }
+
+    class Lease internal constructor(val keyId: String)
+
+    /**
+     * 为一次生成调用选择密钥；affinity 非空时必须使用该密钥（参考图片仅该密钥可见），
+     * 该密钥冷却中或配额已满时直接抛出 429 并给出恢复时间，不再发出注定失败的请求
+     */
+    fun acquire(affinity: String? = null): Lease {
+        synchronized(lock) {
+            val now = System.nanoTime()
+            val pinned = affinity?.let { byId[it] }
+            if (pinned != null && !pinned.available(now)) throw exhausted(now, listOf(pinned))
+            val key = pinned ?: keys
+                .filter { it.available(now) }
+                .minWithOrNull(compareBy<KeyState> { it.inFlight }.thenBy { it.windowRequests })
+                ?: throw exhausted(now)
+            key.roll(now)
+            key.inFlight++
+            key.windowRequests++
+            key.totalRequests++
+            return Lease(key.id)
+        }
+    }
+
+    /**
+     * 上传等不计入生成配额的调用只选择密钥
+     */
+    fun select(affinity: String? = null): String {
+        synchronized(lock) {
+            val now = System.nanoTime()
+            affinity?.let { byId[it] }?.let { return it.id }
+            return (keys.filter { it.available(now) }.minByOrNull { it.inFlight } ?: keys.first()).id
+        }
+    }
+
+    fun release(lease: Lease, totalTokens: Int, error: Throwable?) {
+        synchronized(lock) {
+            val key = byId.getValue(lease.keyId)
+            key.inFlight--
+            key.roll(System.nanoTime())
+            key.windowTokens += totalTokens
+            key.totalTokens += totalTokens
+            if (error != null && isQuotaError(error)) {
+                key.errors++
+                key.cooldownUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.keyCooldownSeconds)
+                log.warn("gemini key {} hit quota, ejected for {}s", key.id, config.keyCooldownSeconds)
+            }
+        }
+    }
+
+    /**
+     * 配额错误只属于该密钥、其他密钥仍可用时，不应视为模型整体过载
+     */
+    fun isKeyLocalQuota(lease: Lease, error: Throwable): Boolean {
+        if (!isQuotaError(error)) return false
+        synchronized(lock) {
+            val now = System.nanoTime()
+            return keys.any { it.id != lease.keyId && it.available(now) }
+        }
+    }
+
+    /**
+     * 引用格式为 "密钥标识/files/xxx"；旧格式 "files/xxx" 归属第一个密钥
+     */
+    fun keyOf(ref: String): String {
+        val prefix = ref.substringBefore('/', "")
+        return if (byId.containsKey(prefix)) prefix else keys.first().id
+    }
+
+    fun fileName(ref: String): String {
+        val prefix = ref.substringBefore('/', "")
+        return if (byId.containsKey(prefix)) ref.substringAfter('/') else ref
+    }
+
+    fun ref(keyId: String, fileName: String): String = "$keyId/$fileName"
+
+    private fun isQuotaError(error: Throwable): Boolean {
+        var cause: Throwable? = error
+        while (cause != null) {
+            if (cause is ApiException) return cause.code() == 429 || cause.status() == "RESOURCE_EXHAUSTED"
+            cause = cause.cause
+        }
+        return false
+    }
+
+    private fun exhausted(now: Long, candidates: List<KeyState> = keys): TooManyRequestsException {
+        val wait = candidates.minOf { it.recoverInNanos(now) }
+        return TooManyRequestsException(
+            "模型配额已用尽，请稍后再试",
+            TimeUnit.NANOSECONDS.toSeconds(wait).coerceAtLeast(1)
+        )
+    }
+
+    fun stats(): List<GeminiKeyStats> = synchronized(lock) {
+        val now = System.nanoTime()
+        keys.map { key ->
+            key.roll(now)
+            GeminiKeyStats(
+                id = key.id,
+                available = key.available(now),
+                inFlight = key.inFlight,
+                requestsPerMinute = key.windowRequests,
+                tokensPerMinute = key.windowTokens,
+                totalRequests = key.totalRequests,
+                totalTokens = key.totalTokens,
+                quotaErrors = key.errors,
+                cooldownSeconds = TimeUnit.NANOSECONDS.toSeconds((key.cooldownUntil - now).coerceAtLeast(0)),
+            )
+        }
+    }
+
+    /**
+     * 单个密钥的用量状态，按分钟窗口统计；须在持有池锁时访问
+     */
+    inner class KeyState(val id: String, val apiKey: String) {
+        var inFlight = 0
+        var windowStart = System.nanoTime()
+        var windowRequests = 0
+        var windowTokens = 0L
+        var totalRequests = 0L
+        var totalTokens = 0L
+        var errors = 0L
+        var cooldownUntil = 0L
+
+        fun roll(now: Long) {
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now
+                windowRequests = 0
+                windowTokens = 0
+            }
+        }
+
+        fun available(now: Long): Boolean {
+            if (now < cooldownUntil) return false
+            roll(now)
+            val rpm = config.keyRequestsPerMinute
+            val tpm = config.keyTokensPerMinute
+            return (rpm <= 0 || windowRequests < rpm) && (tpm <= 0 || windowTokens < tpm)
+        }
+
+        fun recoverInNanos(now: Long): Long {
+            val cooldown = (cooldownUntil - now).coerceAtLeast(0)
+            val window = (windowStart + WINDOW_NANOS - now).coerceAtLeast(0)
+            return if (now < cooldownUntil) cooldown else window
+        }
+    }
+
+    private companion object {
+        val WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1)
+    }
+}
+
+/**
+ * 单个密钥的配额错误，其他密钥仍可用；调用治理据此重试而不回退整个模型的并发上限
+ */
+class GeminiKeyQuotaException(val keyId: String, cause: Throwable) :
+    RuntimeException("gemini key $keyId hit quota", cause)
+
+@Serdeable
+data class GeminiKeyStats(
+    val id: String,
+    val available: Boolean,
+    val inFlight: Int,
+    val requestsPerMinute: Int,
+    val tokensPerMinute: Long,
+    val totalRequests: Long,
+    val totalTokens: Long,
+    val quotaErrors: Long,
+    val cooldownSeconds: Long,
+)
@@ -0,0 +1,155 @@
+package coralsum.component.models
+
+import coralsum.common.enums.ModelType
+import coralsum.config.HedgeConfig
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 对冲结果：hedged 表示本次调用额外发出过对冲请求
+ */
+class Hedged<T>(val value: T, val hedged: Boolean)
+
+/**
+ * BASIC 模型调用的对冲策略：调用超过近期 p90 耗时仍未返回时发出一份相同请求，取先成功者并取消另一份；
+ * 对冲量受按调用量比例累积的预算约束。在 [ModelCallGovernor] 的单次尝试内执行，对冲请求与原请求共用同一个并发额度，
+ * 该模型已有调用在排队等待额度时不再对冲，避免把排队造成的慢当作尾延迟加剧拥塞。
+ */
+@Singleton
+class HedgingPolicy(
+    private val config: HedgeConfig,
+    private val modelCallGovernor: ModelCallGovernor,
+) {
+
+    private val lock = Any()
+
+    private val window = LongArray(config.windowSize.coerceAtLeast(1))
+    private var samples = 0
+    private var cursor = 0
+    private var budget = 0.0
+
+    private val calls = AtomicLong()
+    private val hedges = AtomicLong()
+    private val hedgeWins = AtomicLong()
+    private val budgetDenied = AtomicLong()
+    private val congestionSkipped = AtomicLong()
+
+    fun applies(modelType: ModelType?): Boolean = config.enabled && (modelType ?: ModelType.BASIC) == ModelType.BASIC
+
+    suspend fun <T> run(modelType: ModelType?, block: suspend () -> T): Hedged<T> {
+        if (!applies(modelType)) return Hedged(block(), false)
+        calls.incrementAndGet()
+        synchronized(lock) { budget = (budget + config.budgetPercent / 100).coerceAtMost(BUDGET_CAP) }
+        val delayMillis = threshold() ?: return Hedged(timed(block), false)
+        return coroutineScope {
+            val primary = async { runCatching { timed(block) } }
+            val early = withTimeoutOrNull(delayMillis) { primary.await() }
+            if (early != null) return@coroutineScope Hedged(early.getOrThrow(), false)
+            if (modelCallGovernor.hasWaiters(modelType)) {
+                congestionSkipped.incrementAndGet()
+                return@coroutineScope Hedged(primary.await().getOrThrow(), false)
+            }
+            if (!consume()) {
+                budgetDenied.incrementAndGet()
+                return@coroutineScope Hedged(primary.await().getOrThrow(), false)
+            }
+            hedges.incrementAndGet()
+            val backup = async { runCatching { timed(block) } }
+            Hedged(race(primary, backup), true)
+        }
+    }
+
+    /**
+     * 先成功者胜出并取消另一份；先完成的一份失败时等待另一份，两份都失败则抛出先失败者的异常
+     */
+    private suspend fun <T> race(primary: Deferred<Result<T>>, backup: Deferred<Result<T>>): T {
+        val (first, other) = select {
+            primary.onAwait { it to backup }
+            backup.onAwait { it to primary }
+        }
+        if (first.isSuccess) {
+            other.cancel()
+            if (other === primary) hedgeWins.incrementAndGet()
+            return first.getOrThrow()
+        }
+        val second = other.await()
+        if (second.isSuccess) {
+            if (other === backup) hedgeWins.incrementAndGet()
+            return second.getOrThrow()
+        }
+        throw first.exceptionOrNull()!!
+    }
+
+    /**
+     * 成功或被取消时记录耗时；被取消的一份耗时只是下界，仍计入以免分位数被低估
+     */
+    private suspend fun <T> timed(block: suspend () -> T): T {
+        val started = System.nanoTime()
+        try {
+            return block().also { record(started) }
+        } catch (e: CancellationException) {
+            record(started)
+            throw e
+        }
+    }
+
+    private fun record(started: Long) {
+        val elapsed = (System.nanoTime() - started) / 1_000_000
+        synchronized(lock) {
+            window[cursor] = elapsed
+            cursor = (cursor + 1) % window.size
+            if (samples < window.size) samples++
+        }
+    }
+
+    private fun threshold(): Long? {
+        val sorted = synchronized(lock) {
+            if (samples < config.minSamples) return null
+            window.copyOf(samples)
+        }
+        sorted.sort()
+        val index = ((sorted.size - 1) * config.percentile).toInt().coerceIn(0, sorted.size - 1)
+        return maxOf(sorted[index], config.minDelayMillis)
+    }
+
+    private fun consume(): Boolean = synchronized(lock) {
+        if (budget < 1) return false
+        budget -= 1
+        true
+    }
+
+    fun stats(): HedgeStats {
+        val p = threshold()
+        return HedgeStats(
+            enabled = config.enabled,
+            thresholdMs = p,
+            calls = calls.get(),
+            hedges = hedges.get(),
+            hedgeWins = hedgeWins.get(),
+            budgetDenied = budgetDenied.get(),
+            congestionSkipped = congestionSkipped.get(),
+        )
+    }
+
+    private companion object {
+        const val BUDGET_CAP = 10.0
+    }
+}
+
+@Serdeable
+data class HedgeStats(
+    val enabled: Boolean,
+    val thresholdMs: Long?,
+    val calls: Long,
+    val hedges: Long,
+    val hedgeWins: Long,
+    val budgetDenied: Long,
+    val congestionSkipped: Long,
+)
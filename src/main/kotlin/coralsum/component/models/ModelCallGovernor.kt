@@ -0,0 +1,358 @@
+package coralsum.component.models
+
+import com.google.genai.errors.ApiException
+import coralsum.common.enums.ModelType
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.ModelGovernorConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import java.io.IOException
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Gemini 调用的客户端治理：每个模型独立的 AIMD 自适应并发上限、熔断器（含半开探测）
+ * 以及带全抖动退避与重试预算的重试，上游降级时优先保证有效吞吐，避免重试风暴。
+ */
+@Singleton
+class ModelCallGovernor(
+    config: ModelGovernorConfig,
+) {
+
+    private val lanes = ModelType.entries.associateWith { ModelLane(it.name, config) }
+
+    /**
+     * sizeClass 为输出尺寸（如 1K/4K），耗时基线按尺寸分别统计
+     */
+    suspend fun <T> call(modelType: ModelType?, sizeClass: String? = null, block: suspend () -> T): T {
+        return lanes.getValue(modelType ?: ModelType.BASIC).call(sizeClass ?: DEFAULT_SIZE_CLASS, block)
+    }
+
+    /**
+     * 该模型是否有调用在等待并发额度
+     */
+    fun hasWaiters(modelType: ModelType?): Boolean = lanes.getValue(modelType ?: ModelType.BASIC).waiting > 0
+
+    fun stats(): Map<String, ModelLaneStats> = lanes.entries.associate { (type, lane) -> type.name to lane.stats() }
+
+    private companion object {
+        const val DEFAULT_SIZE_CLASS = "default"
+    }
+}
+
+/**
+ * 调用结果分类：OVERLOAD 为 429/503 等上游过载，TRANSIENT 为其他 5xx、超时与网络错误，
+ * CLIENT 为请求本身的问题（参数、内容审核等），不计入上游健康度也不重试；
+ * KEY_QUOTA 为单个密钥的配额错误而其他密钥仍可用，换密钥重试，不计入上游健康度
+ */
+internal enum class CallOutcome { SUCCESS, OVERLOAD, TRANSIENT, CLIENT, KEY_QUOTA }
+
+class ModelLane(
+    private val name: String,
+    private val config: ModelGovernorConfig,
+) {
+
+    private val log = logger<ModelLane>()
+
+    private val limiter = AdaptiveLimiter(config)
+    private val breaker = CircuitBreaker(config)
+    private val budget = RetryBudget(config)
+
+    private val calls = AtomicLong()
+    private val retries = AtomicLong()
+    private val overloads = AtomicLong()
+    private val budgetExhausted = AtomicLong()
+
+    val waiting: Int get() = limiter.waiting
+
+    suspend fun <T> call(sizeClass: String, block: suspend () -> T): T {
+        calls.incrementAndGet()
+        budget.deposit()
+        var attempt = 0
+        while (true) {
+            attempt++
+            val probe = breaker.acquire()
+            try {
+                limiter.acquire()
+            } catch (e: CancellationException) {
+                breaker.onResult(null, probe)
+                throw e
+            }
+            val started = System.nanoTime()
+            try {
+                val result = block()
+                limiter.release(elapsedMs(started), CallOutcome.SUCCESS, sizeClass)
+                breaker.onResult(CallOutcome.SUCCESS, probe)
+                return result
+            } catch (e: CancellationException) {
+                limiter.release(elapsedMs(started), null, sizeClass)
+                breaker.onResult(null, probe)
+                throw e
+            } catch (e: Exception) {
+                val outcome = classify(e)
+                limiter.release(elapsedMs(started), outcome, sizeClass)
+                breaker.onResult(outcome, probe)
+                if (outcome == CallOutcome.OVERLOAD) overloads.incrementAndGet()
+                if (outcome == CallOutcome.CLIENT || attempt >= config.maxAttempts) throw e
+                if (!budget.tryWithdraw()) {
+                    budgetExhausted.incrementAndGet()
+                    throw e
+                }
+                retries.incrementAndGet()
+                val backoff = backoffMillis(attempt)
+                log.warn("gemini {} call failed ({}), retry #{} in {}ms: {}", name, outcome, attempt, backoff, e.message)
+                delay(backoff)
+            }
+        }
+    }
+
+    private fun elapsedMs(started: Long): Long = (System.nanoTime() - started) / 1_000_000
+
+    /**
+     * 全抖动：在 [0, min(上限, 基数 * 2^(n-1))] 内均匀取值，使同时失败的请求错开重试
+     */
+    private fun backoffMillis(attempt: Int): Long {
+        val ceiling = (config.baseBackoffMillis shl (attempt - 1).coerceAtMost(20)).coerceAtMost(config.maxBackoffMillis)
+        return ThreadLocalRandom.current().nextLong(ceiling + 1)
+    }
+
+    private fun classify(e: Throwable): CallOutcome {
+        var cause: Throwable? = e
+        while (cause != null) {
+            when (cause) {
+                is GeminiKeyQuotaException -> return CallOutcome.KEY_QUOTA
+                is ApiException -> return when (cause.code()) {
+                    429, 503 -> CallOutcome.OVERLOAD
+                    in 500..599 -> CallOutcome.TRANSIENT
+                    else -> CallOutcome.CLIENT
+                }
+
+                is TimeoutException, is IOException -> return CallOutcome.TRANSIENT
+            }
+            cause = cause.cause
+        }
+        return CallOutcome.CLIENT
+    }
+
+    fun stats(): ModelLaneStats = ModelLaneStats(
+        limit = limiter.limit,
+        inFlight = limiter.inFlight,
+        waiting = limiter.waiting,
+        avgLatencyMs = limiter.avgLatencyMs,
+        breaker = breaker.state.name,
+        calls = calls.get(),
+        retries = retries.get(),
+        overloads = overloads.get(),
+        budgetExhausted = budgetExhausted.get(),
+        rejectedByBreaker = breaker.rejected,
+    )
+}
+
+/**
+ * AIMD 并发上限：成功且耗时正常时每个往返加性增长约 1，过载、超时或耗时明显高于长期均值时乘性回退；
+ * 耗时基线按输出尺寸分别维护，1K 与 4K 请求的正常耗时相差数倍，共用一个均值会互相误判；
+ * 回退之间至少间隔一个平均往返时间，避免同一次拥塞被重复惩罚
+ */
+internal class AdaptiveLimiter(private val config: ModelGovernorConfig) {
+
+    private val lock = Any()
+
+    private var current = config.initialLimit.toDouble()
+    private var active = 0
+    private val rttMs = HashMap<String, Double>()
+    private var lastDecrease = 0L
+    private val waiters = ArrayDeque<CompletableDeferred<Unit>>()
+
+    val limit: Int get() = synchronized(lock) { current.toInt() }
+    val inFlight: Int get() = synchronized(lock) { active }
+    val waiting: Int get() = synchronized(lock) { waiters.size }
+    val avgLatencyMs: Map<String, Long> get() = synchronized(lock) { rttMs.mapValues { it.value.toLong() } }
+
+    suspend fun acquire() {
+        val waiter = synchronized(lock) {
+            if (waiters.isEmpty() && active < current.toInt()) {
+                active++
+                return
+            }
+            CompletableDeferred<Unit>().also { waiters.addLast(it) }
+        }
+        try {
+            waiter.await()
+        } catch (e: CancellationException) {
+            synchronized(lock) {
+                if (!waiters.remove(waiter)) {
+                    active--
+                    drain()
+                }
+            }
+            throw e
+        }
+    }
+
+    /**
+     * outcome 为空表示调用被取消，只归还并发额度；sizeClass 选择对应尺寸的耗时基线
+     */
+    fun release(latencyMs: Long, outcome: CallOutcome?, sizeClass: String = "default") {
+        synchronized(lock) {
+            active--
+            val rtt = rttMs[sizeClass] ?: 0.0
+            when (outcome) {
+                CallOutcome.SUCCESS -> {
+                    if (rtt > 0 && latencyMs > rtt * config.latencyTolerance) {
+                        decrease(0.9, rtt)
+                    } else {
+                        current = (current + 1.0 / current).coerceAtMost(config.maxLimit.toDouble())
+                    }
+                    rttMs[sizeClass] = if (rtt == 0.0) latencyMs.toDouble() else rtt * 0.9 + latencyMs * 0.1
+                }
+
+                CallOutcome.OVERLOAD, CallOutcome.TRANSIENT -> decrease(config.backoffRatio, rtt)
+                else -> {}
+            }
+            drain()
+        }
+    }
+
+    private fun decrease(ratio: Double, rtt: Double) {
+        val now = System.nanoTime()
+        val interval = maxOf(rtt, 1000.0) * 1_000_000
+        if (now - lastDecrease < interval) return
+        lastDecrease = now
+        current = (current * ratio).coerceAtLeast(config.minLimit.toDouble())
+    }
+
+    private fun drain() {
+        while (waiters.isNotEmpty() && active < current.toInt()) {
+            active++
+            waiters.removeFirst().complete(Unit)
+        }
+    }
+}
+
+/**
+ * 基于最近 N 次结果的熔断器：打开期间直接拒绝，冷却后进入半开状态放行有限探测，
+ * 探测全部成功则关闭，任一失败重新打开
+ */
+internal class CircuitBreaker(private val config: ModelGovernorConfig) {
+
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    private val lock = Any()
+
+    @Volatile
+    var state = State.CLOSED
+        private set
+
+    private val window = ArrayDeque<Boolean>()
+    private var openUntil = 0L
+    private var probes = 0
+    private var probeSuccesses = 0
+    private val rejectedCount = AtomicLong()
+
+    val rejected: Long get() = rejectedCount.get()
+
+    /**
+     * 获取调用许可，返回本次是否为半开探测
+     */
+    fun acquire(): Boolean {
+        synchronized(lock) {
+            if (state == State.OPEN && System.nanoTime() >= openUntil) {
+                state = State.HALF_OPEN
+                probes = 0
+                probeSuccesses = 0
+            }
+            when (state) {
+                State.CLOSED -> return false
+                State.HALF_OPEN -> if (probes < config.halfOpenProbes) {
+                    probes++
+                    return true
+                }
+
+                State.OPEN -> {}
+            }
+            rejectedCount.incrementAndGet()
+            val remaining = if (state == State.OPEN) (openUntil - System.nanoTime()) / 1_000_000_000 else 1
+            throw TooManyRequestsException("模型服务繁忙，请稍后再试", remaining.coerceAtLeast(1))
+        }
+    }
+
+    /**
+     * outcome 为空表示调用被取消，不计入统计
+     */
+    fun onResult(outcome: CallOutcome?, probe: Boolean) {
+        synchronized(lock) {
+            val failure = outcome == CallOutcome.OVERLOAD || outcome == CallOutcome.TRANSIENT
+            if (probe && state == State.HALF_OPEN) {
+                when {
+                    outcome == null || outcome == CallOutcome.CLIENT || outcome == CallOutcome.KEY_QUOTA -> probes--
+                    failure -> open()
+                    ++probeSuccesses >= config.halfOpenProbes -> {
+                        state = State.CLOSED
+                        window.clear()
+                    }
+                }
+                return
+            }
+            if (state != State.CLOSED || outcome == null || !failure && outcome != CallOutcome.SUCCESS) return
+            window.addLast(failure)
+            if (window.size > config.slidingWindowSize) window.removeFirst()
+            if (window.size >= config.minimumCalls &&
+                window.count { it }.toDouble() / window.size >= config.failureRateThreshold
+            ) {
+                open()
+            }
+        }
+    }
+
+    private fun open() {
+        state = State.OPEN
+        openUntil = System.nanoTime() + config.openSeconds * 1_000_000_000
+        window.clear()
+    }
+}
+
+/**
+ * 重试预算：首次请求按比例存入额度，另按时间保底恢复，重试消耗 1 个额度，
+ * 上游整体故障时重试量被限制在请求量的固定比例内
+ */
+internal class RetryBudget(private val config: ModelGovernorConfig) {
+
+    private val lock = Any()
+    private val capacity = maxOf(10.0, config.minRetriesPerSecond * 10)
+    private var tokens = capacity
+    private var lastRefill = System.nanoTime()
+
+    fun deposit() {
+        synchronized(lock) { tokens = (tokens + config.retryBudgetRatio).coerceAtMost(capacity) }
+    }
+
+    fun tryWithdraw(): Boolean {
+        synchronized(lock) {
+            val now = System.nanoTime()
+            tokens = (tokens + (now - lastRefill) / 1e9 * config.minRetriesPerSecond).coerceAtMost(capacity)
+            lastRefill = now
+            if (tokens < 1) return false
+            tokens -= 1
+            return true
+        }
+    }
+}
+
+@Serdeable
+data class ModelLaneStats(
+    val limit: Int,
+    val inFlight: Int,
+    val waiting: Int,
+    val avgLatencyMs: Map<String, Long>,
+    val breaker: String,
+    val calls: Long,
+    val retries: Long,
+    val overloads: Long,
+    val budgetExhausted: Long,
+    val rejectedByBreaker: Long,
+)
@@ -1,36 +1,128 @@
 package coralsum.component.models
 
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
 import com.google.common.collect.Lists
+import com.google.genai.ApiCalls
 import com.google.genai.Client
+import com.google.genai.HttpTuning
 import com.google.genai.types.*
 import io.micronaut.serde.annotation.Serdeable
-import java.awt.image.BufferedImage
-import java.io.ByteArrayInputStream
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.future.await
 import java.io.Closeable
 import java.io.InputStream
-import javax.imageio.ImageIO
+import java.time.Duration
+import java.util.*
 import kotlin.jvm.optionals.getOrElse
 import kotlin.time.Duration.Companion.minutes
 import kotlin.time.DurationUnit
 
-class NanoBanana(private val apiKey: String) : Closeable {
-
-    private var client = Client.builder()
-        .httpOptions(
-            HttpOptions.builder()
-//                .baseUrl(String.format("https://%s-aiplatform.googleapis.com", "us-central1"))
-//                .baseUrl("https://aiplatform.googleapis.com")
-//                .apiVersion("v1alpha")
-                .timeout(5.minutes.toInt(DurationUnit.MILLISECONDS))
-                .build()
-        )
-        .vertexAI(false)
-        .apiKey(apiKey)
+/**
+ * Gemini 图片生成客户端：每个密钥一个 SDK Client，调用经 [GeminiKeyPool] 选择密钥并回报用量；
+ * 所有 Client 共享按 [HttpTuning.Settings] 配置的 OkHttp 调度器与连接池
+ */
+class NanoBanana(
+    private val pool: GeminiKeyPool,
+    httpSettings: HttpTuning.Settings? = null,
+) : Closeable {
+
+    init {
+        // 须在创建 Client 之前安装，ApiClient 构建 OkHttpClient 时读取
+        httpSettings?.let { HttpTuning.configure(it) }
+    }
+
+    /**
+     * 模型返回的原始图片数据，保持 inlineData 中的字节与 mimeType，不做解码
+     */
+    class GeneratedImage(val bytes: ByteArray, val mimeType: String)
+
+    /**
+     * 已解析的参考图片：ref 为带密钥标识的文件引用，uri/mimeType 可直接构造 Part；
+     * data 非空时为内联图片，随请求体直接发送，不经过 Files API
+     */
+    class ResolvedFile(val ref: String, val uri: String?, val mimeType: String, val data: ByteArray? = null)
+
+    // 文件元数据在 Files API 中 48 小时内不变，短期缓存避免每个候选重复 files.get
+    private val resolvedFiles: Cache<String, ResolvedFile> = Caffeine.newBuilder()
+        .expireAfterWrite(Duration.ofHours(1))
+        .maximumSize(10_000)
         .build()
 
-    fun gen(
+    private val clients: Map<String, Client> = pool.keys.associate { key ->
+        key.id to Client.builder()
+            .httpOptions(
+                HttpOptions.builder()
+//                    .baseUrl(String.format("https://%s-aiplatform.googleapis.com", "us-central1"))
+//                    .baseUrl("https://aiplatform.googleapis.com")
+//                    .apiVersion("v1alpha")
+                    .timeout(5.minutes.toInt(DurationUnit.MILLISECONDS))
+                    .build()
+            )
+            .vertexAI(false)
+            .apiKey(key.apiKey)
+            .build()
+    }
+
+    /**
+     * 按参考图片所属密钥路由；同一请求的参考图片应来自同一密钥，内联图片不受密钥限制
+     */
+    private fun affinity(imageRefs: List<String>?): String? =
+        imageRefs?.firstOrNull { !isInline(it) }?.let { pool.keyOf(it) }
+
+    /**
+     * 记录已知的文件元数据（来自上传响应或会话缓存），之后解析时不再请求 files.get
+     */
+    fun remember(ref: String, uri: String, mimeType: String) {
+        resolvedFiles.put(ref, ResolvedFile(ref, uri, mimeType))
+    }
+
+    /**
+     * 文件已删除或过期，之后不再返回缓存的元数据
+     */
+    fun forget(ref: String) {
+        resolvedFiles.invalidate(ref)
+    }
+
+    /**
+     * 每次请求解析一次参考图片，结果供所有候选共用；未命中缓存的引用并发查询
+     */
+    suspend fun resolveFiles(imageRefs: List<String>): List<ResolvedFile> {
+        if (imageRefs.isEmpty()) return emptyList()
+        val callId = UUID.randomUUID().toString()
+        try {
+            return coroutineScope {
+                imageRefs.map { ref ->
+                    async {
+                        resolvedFiles.getIfPresent(ref) ?: clients.getValue(pool.keyOf(ref)).async.files
+                            .get(pool.fileName(ref), fileConfig(callId))
+                            .await()
+                            .let { resolved(ref, it) }
+                    }
+                }.awaitAll()
+            }
+        } catch (e: CancellationException) {
+            ApiCalls.cancel(callId)
+            throw e
+        }
+    }
+
+    private fun resolved(ref: String, file: File): ResolvedFile {
+        return ResolvedFile(ref, file.uri().get(), file.mimeType().get()).also { resolvedFiles.put(ref, it) }
+    }
+
+    private fun usageTokens(usage: GenerateContentResponseUsageMetadata): Int = usage.totalTokenCount().getOrElse { 0 }
+
+    /**
+     * 基于异步客户端（OkHttp enqueue）生成：等待模型期间不占用线程，
+     * 调用方协程取消时同步取消底层 HTTP 调用。参考图片须预先经 [resolveFiles] 解析。
+     */
+    suspend fun genAsync(
         text: String,
-        imageRefs: List<String>? = null,
+        images: List<ResolvedFile>? = null,
         aspectRatio: String? = null,
         system: String? = null,
         temperature: Float = 1f,
@@ -39,8 +131,61 @@ class NanoBanana(private val apiKey: String) : Closeable {
         imageSize: String = "1K",
         mediaResolution: String = "AUTO",
         modelType: String = "BASIC",
-    ): Pair<Pair<String?, BufferedImage?>, GenerateContentResponseUsageMetadata> {
-        val contentConfig = GenerateContentConfig.builder()
+    ): Pair<Pair<String?, GeneratedImage?>, GenerateContentResponseUsageMetadata> {
+        val callId = UUID.randomUUID().toString()
+        val contentConfig =
+            buildConfig(aspectRatio, system, temperature, maxOutputTokens, topP, imageSize, modelType, callId)
+        val lease = pool.acquire(affinity(images?.map { it.ref }))
+        val client = clients.getValue(lease.keyId)
+        try {
+            val contentParts = listOf(Part.fromText(text)) + images.orEmpty().map { filePart(it) }
+            val response = client.async.models.generateContent(
+                modelName(modelType),
+                Content.fromParts(*contentParts.toTypedArray()),
+                contentConfig
+            ).await()
+            return parse(response).also { pool.release(lease, usageTokens(it.second), null) }
+        } catch (e: CancellationException) {
+            pool.release(lease, 0, null)
+            ApiCalls.cancel(callId)
+            throw e
+        } catch (e: Exception) {
+            pool.release(lease, 0, e)
+            if (pool.isKeyLocalQuota(lease, e)) throw GeminiKeyQuotaException(lease.keyId, e)
+            throw e
+        }
+    }
+
+    private fun modelName(modelType: String): String = when (modelType.uppercase()) {
+        "BASIC" -> "gemini-2.5-flash-image"
+        else -> "gemini-3-pro-image-preview"
+    }
+
+    private fun filePart(file: ResolvedFile): Part =
+        file.data?.let { Part.fromBytes(it, file.mimeType) } ?: Part.fromUri(file.uri!!, file.mimeType)
+
+    private fun fileConfig(callId: String): GetFileConfig = GetFileConfig.builder()
+        .httpOptions(callOptions(callId))
+        .build()
+
+    /**
+     * 为单次调用打上标识头，便于取消时在 OkHttp Dispatcher 中定位对应 Call
+     */
+    private fun callOptions(callId: String): HttpOptions = HttpOptions.builder()
+        .headers(mapOf(ApiCalls.CALL_ID_HEADER to callId))
+        .build()
+
+    private fun buildConfig(
+        aspectRatio: String?,
+        system: String?,
+        temperature: Float,
+        maxOutputTokens: Int,
+        topP: Float,
+        imageSize: String,
+        modelType: String,
+        callId: String,
+    ): GenerateContentConfig {
+        return GenerateContentConfig.builder()
             .responseModalities("TEXT", "IMAGE")
             .apply {
                 if (system != null) {
@@ -73,6 +218,7 @@ class NanoBanana(private val apiKey: String) : Closeable {
 //                        }
 //                    }
 //                }
+                httpOptions(callOptions(callId))
             }
             .temperature(temperature)
             .topP(topP)
@@ -99,34 +245,11 @@ class NanoBanana(private val apiKey: String) : Closeable {
                 }
             }
             .build()
-        val contentParts: List<Part> = try {
-            val parts = buildList {
-                add(Part.fromText(text))
-                if (imageRefs != null && imageRefs.isNotEmpty()) {
-                    imageRefs.forEach { ref ->
-                        val file = client.files.get(ref, GetFileConfig.builder().build())
-                        add(Part.fromUri(file.uri().get(), file.mimeType().get()))
-                    }
-                }
-            }
-            parts
-        } catch (_: Exception) {
-            buildList {
-                add(Part.builder().text(text).build())
-            }
-        }
-        val response: GenerateContentResponse = try {
-            val contentObj = Content.fromParts(*contentParts.toTypedArray())
-            client.models.generateContent(
-                when (modelType.uppercase()) {
-                    "BASIC" -> "gemini-2.5-flash-image"
-                    else -> "gemini-3-pro-image-preview"
-                },
-                contentObj,
-                contentConfig
-            )
-        } finally {
-        }
+    }
+
+    private fun parse(
+        response: GenerateContentResponse,
+    ): Pair<Pair<String?, GeneratedImage?>, GenerateContentResponseUsageMetadata> {
         val result = response.candidates()
             .map { candidates ->
                 candidates.stream()
@@ -140,15 +263,15 @@ class NanoBanana(private val apiKey: String) : Closeable {
             }
             .map { parts ->
                 var text: String? = null
-                var image: BufferedImage? = null
+                var image: GeneratedImage? = null
                 for (part in parts) {
                     if (part.text().isPresent) {
                         text = part.text().get()
                     } else if (part.inlineData().isPresent) {
-                        image = ImageIO.read(
-                            ByteArrayInputStream(
-                                part.inlineData().flatMap { obj -> obj.data() }.get()
-                            )
+                        val blob = part.inlineData().get()
+                        image = GeneratedImage(
+                            blob.data().get(),
+                            blob.mimeType().getOrElse { "application/octet-stream" }
                         )
                     }
                 }
@@ -160,29 +283,84 @@ class NanoBanana(private val apiKey: String) : Closeable {
     }
 
     @Serdeable
-    data class UploadedFile(val uri: String, val mimeType: String)
+    data class UploadedFile(val uri: String, val mimeType: String, val fileUri: String? = null)
 
-    fun upload(imgStream: InputStream, fileName: String): UploadedFile {
-        val mimeType = when (val type = fileName.substringAfterLast(".")) {
-            "png" -> "image/png"
-            "jpg", "jpeg" -> "image/jpeg"
-            else -> throw IllegalArgumentException("Unsupported image type: $type")
-        }
-        val file = client.files.upload(
-            imgStream.readAllBytes(),
-            UploadFileConfig.builder().mimeType(mimeType).build()
-        )
-        return UploadedFile(file.name().get(), mimeType)
+    /**
+     * 上传参考图片；sessionRef 为同一会话中已上传的引用，使会话内图片落在同一密钥下
+     */
+    fun upload(imgStream: InputStream, fileName: String, sessionRef: String? = null): UploadedFile {
+        return upload(imgStream.readAllBytes(), mimeTypeOf(fileName), sessionRef?.let { pool.keyOf(it) })
+    }
+
+    /**
+     * affinity 为密钥标识，非空时上传到该密钥下
+     */
+    fun upload(bytes: ByteArray, mimeType: String, affinity: String? = null): UploadedFile {
+        return upload(mimeType, affinity) { client, config -> client.files.upload(bytes, config) }
+    }
+
+    /**
+     * 上传暂存在磁盘上的大图，由 SDK 从文件流式读取，不整体载入内存
+     */
+    fun upload(path: java.nio.file.Path, mimeType: String, affinity: String? = null): UploadedFile {
+        return upload(mimeType, affinity) { client, config -> client.files.upload(path.toFile(), config) }
+    }
+
+    private fun upload(
+        mimeType: String,
+        affinity: String?,
+        send: (Client, UploadFileConfig) -> File,
+    ): UploadedFile {
+        val keyId = pool.select(affinity)
+        val file = send(clients.getValue(keyId), UploadFileConfig.builder().mimeType(mimeType).build())
+        val ref = pool.ref(keyId, file.name().get())
+        val fileUri = file.uri().orElse(null)
+        if (fileUri != null) remember(ref, fileUri, mimeType)
+        return UploadedFile(ref, mimeType, fileUri)
     }
 
     fun delete(uriOrName: String) {
         try {
-            client.files.delete(uriOrName, null)
+            clients.getValue(pool.keyOf(uriOrName)).files.delete(pool.fileName(uriOrName), null)
         } catch (_: Exception) {
         }
     }
 
     override fun close() {
-        client.close()
+        clients.values.forEach { it.close() }
+    }
+
+    companion object {
+        private const val INLINE_PREFIX = "inline:"
+
+        /**
+         * 内联图片的引用以内容摘要标识，仅在上传会话中有效
+         */
+        fun inlineRef(contentHash: String): String = INLINE_PREFIX + contentHash
+
+        fun isInline(ref: String): Boolean = ref.startsWith(INLINE_PREFIX)
+
+        fun mimeTypeOf(fileName: String): String = when (val type = fileName.substringAfterLast(".")) {
+            "png" -> "image/png"
+            "jpg", "jpeg" -> "image/jpeg"
+            else -> throw IllegalArgumentException("Unsupported image type: $type")
+        }
+
+        fun httpStats(): GeminiHttpStats? = HttpTuning.utilisation()?.let {
+            GeminiHttpStats(
+                connections = it.connections,
+                idleConnections = it.idleConnections,
+                runningCalls = it.runningCalls,
+                queuedCalls = it.queuedCalls,
+            )
+        }
     }
 }
+
+@Serdeable
+data class GeminiHttpStats(
+    val connections: Int,
+    val idleConnections: Int,
+    val runningCalls: Int,
+    val queuedCalls: Int,
+)
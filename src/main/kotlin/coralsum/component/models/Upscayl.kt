@@ -1,6 +1,7 @@
 package coralsum.component.models
 
 import java.io.File
+import kotlin.concurrent.thread
 
 class Upscayl(
     private var executable: String = "./upscayl-bin"
@@ -47,22 +48,26 @@ class Upscayl(
         return args
     }
 
+    fun start(workingDir: File = File(".")): Process {
+        return ProcessBuilder(buildCommand())
+            .directory(workingDir)
+            .redirectErrorStream(false)
+            .start()
+    }
+
     fun run(
         workingDir: File = File("."),
         onOutput: (String) -> Unit = { print(it) },
         onError: (String) -> Unit = { System.err.print(it) }
     ): Int {
-        val cmd = buildCommand()
-        val process = ProcessBuilder(cmd)
-            .directory(workingDir)
-            .redirectErrorStream(false)
-            .start()
-
-        val stdout = process.inputStream.bufferedReader()
-        val stderr = process.errorStream.bufferedReader()
+        val process = start(workingDir)
 
-        stdout.lines().forEach { onOutput(it + "\n") }
-        stderr.lines().forEach { onError(it + "\n") }
+        // stdout 与 stderr 必须同时消费，否则任一管道写满都会阻塞子进程
+        val stderr = thread(name = "upscayl-stderr", isDaemon = true) {
+            process.errorStream.bufferedReader().lines().forEach { onError(it + "\n") }
+        }
+        process.inputStream.bufferedReader().lines().forEach { onOutput(it + "\n") }
+        stderr.join()
 
         return process.waitFor()
     }
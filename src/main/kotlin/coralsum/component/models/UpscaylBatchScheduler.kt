@@ -0,0 +1,118 @@
+package coralsum.component.models
+
+import coralsum.config.UpscaylConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.annotation.PreDestroy
+import jakarta.inject.Singleton
+import kotlinx.coroutines.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 放大任务的跨请求合批调度：按 (model, scale, format, tile) 收集一个时间窗口内的任务，
+ * 达到窗口时长或批量上限后交给 [UpscaylWorkerPool] 以目录模式一次执行，再把结果分发回各调用方。
+ */
+@Singleton
+class UpscaylBatchScheduler(
+    private val config: UpscaylConfig,
+    private val pool: UpscaylWorkerPool,
+) {
+
+    private val log = logger<UpscaylBatchScheduler>()
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    private val pending = HashMap<BatchKey, PendingBatch>()
+
+    private val batches = AtomicLong()
+    private val images = AtomicLong()
+
+    private data class BatchKey(val model: String, val scale: Int, val format: String, val tile: Int?)
+
+    private class Entry(val job: UpscaylJob, val result: CompletableDeferred<Boolean>)
+
+    private class PendingBatch {
+        val entries = mutableListOf<Entry>()
+        var timer: Job? = null
+    }
+
+    suspend fun submit(job: UpscaylJob): Boolean {
+        if (config.batchWindowMillis <= 0 || config.batchMaxImages <= 1) {
+            return pool.upscale(job)
+        }
+        val key = BatchKey(job.model, job.scale, job.format, job.tile)
+        val entry = Entry(job, CompletableDeferred())
+        synchronized(pending) {
+            val batch = pending.getOrPut(key) { PendingBatch() }
+            batch.entries += entry
+            if (batch.entries.size >= config.batchMaxImages) {
+                batch.timer?.cancel()
+                flush(key)
+            } else if (batch.timer == null) {
+                batch.timer = scope.launch {
+                    delay(config.batchWindowMillis)
+                    synchronized(pending) {
+                        if (pending[key] === batch) flush(key)
+                    }
+                }
+            }
+        }
+        try {
+            return entry.result.await()
+        } catch (e: CancellationException) {
+            // 尚未发车的任务直接移出批次；已在执行的批次由其他调用方继续使用
+            synchronized(pending) {
+                pending[key]?.entries?.remove(entry)
+            }
+            entry.result.cancel()
+            throw e
+        }
+    }
+
+    /**
+     * 须在持有 pending 锁时调用
+     */
+    private fun flush(key: BatchKey) {
+        val batch = pending.remove(key) ?: return
+        val queued = batch.entries.toList()
+        if (queued.isEmpty()) return
+        scope.launch {
+            // 发车前已取消的调用方不再占用批次
+            val entries = queued.filter { it.result.isActive }
+            if (entries.isEmpty()) return@launch
+            batches.incrementAndGet()
+            images.addAndGet(entries.size.toLong())
+            try {
+                val results = pool.upscaleBatch(entries.map { it.job })
+                entries.forEachIndexed { i, e -> e.result.complete(results[i]) }
+            } catch (e: Throwable) {
+                log.warn("upscayl batch failed (model={}, size={}): {}", key.model, entries.size, e.message)
+                entries.forEach { it.result.completeExceptionally(e) }
+            }
+        }
+    }
+
+    fun stats(): UpscaylBatchStats {
+        val waiting = synchronized(pending) { pending.values.sumOf { it.entries.size } }
+        val n = batches.get()
+        return UpscaylBatchStats(
+            batches = n,
+            images = images.get(),
+            avgBatchSize = if (n == 0L) 0.0 else images.get().toDouble() / n,
+            waiting = waiting,
+        )
+    }
+
+    @PreDestroy
+    fun close() {
+        scope.cancel()
+    }
+}
+
+@Serdeable
+data class UpscaylBatchStats(
+    val batches: Long,
+    val images: Long,
+    val avgBatchSize: Double,
+    val waiting: Int,
+)
@@ -0,0 +1,323 @@
+package coralsum.component.models
+
+import coralsum.config.UpscaylConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.annotation.PreDestroy
+import jakarta.inject.Singleton
+import kotlinx.coroutines.future.await
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import java.io.File
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.Path
+import kotlin.io.path.exists
+import kotlin.io.path.extension
+
+/**
+ * 单张放大任务；同一批次内的任务必须具有相同的 model/scale/format/tile
+ */
+class UpscaylJob(
+    val input: Path,
+    val output: Path,
+    val model: String,
+    val scale: Int,
+    val format: String,
+    /** 非空时以分块模式执行，限制超大输出的进程内存 */
+    val tile: Int? = null,
+)
+
+/**
+ * upscayl-bin 进程池：限制同时运行的进程数，异步消费输出管道，强制单次超时，
+ * 并支持目录模式批量执行，使同一模型在一次进程内处理多张图片，只加载一次模型。
+ */
+@Singleton
+class UpscaylWorkerPool(
+    private val config: UpscaylConfig,
+) {
+
+    private val log = logger<UpscaylWorkerPool>()
+
+    private val executable: String = config.executable?.takeIf { it.isNotBlank() }
+        ?: resolveExecutable(System.getProperty("user.dir"))
+
+    private val executor = ThreadPoolExecutor(
+        config.workers, config.workers,
+        0L, TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue(config.queueCapacity),
+        BasicThreadFactory.builder()
+            .namingPattern("upscayl-worker-%d")
+            .build()
+    )
+
+    private val drainer = Executors.newCachedThreadPool(
+        BasicThreadFactory.builder()
+            .namingPattern("upscayl-drain-%d")
+            .daemon(true)
+            .build()
+    )
+
+    private val latencies = ConcurrentHashMap<String, ModelLatency>()
+    private val timeouts = AtomicLong()
+    private val failures = AtomicLong()
+    private val rejected = AtomicLong()
+
+    /**
+     * 放大单张图片，成功时返回 true；协程取消时会结束对应进程
+     */
+    suspend fun upscale(job: UpscaylJob): Boolean = upscaleBatch(listOf(job)).single()
+
+    /**
+     * 以一次进程调用处理整批任务，返回值与 jobs 一一对应，表示各自输出是否生成
+     */
+    suspend fun upscaleBatch(jobs: List<UpscaylJob>): List<Boolean> {
+        if (jobs.isEmpty()) return emptyList()
+        val head = jobs.first()
+        require(jobs.all { it.model == head.model && it.scale == head.scale && it.format == head.format && it.tile == head.tile }) {
+            "batch jobs must share model/scale/format/tile"
+        }
+        val running = RunningProcess()
+        val future = try {
+            CompletableFuture.supplyAsync({ execute(jobs, running) }, executor)
+        } catch (e: RejectedExecutionException) {
+            rejected.incrementAndGet()
+            throw e
+        }
+        future.whenComplete { _, _ ->
+            if (future.isCancelled) running.destroy()
+        }
+        return future.await()
+    }
+
+    /**
+     * 批次内每个任务独立处理：输入缺失或结果无法移交（调用方已取消并清理了目录）只影响该任务本身
+     */
+    private fun execute(jobs: List<UpscaylJob>, running: RunningProcess): List<Boolean> {
+        val head = jobs.first()
+        val started = System.nanoTime()
+        val batchDir = if (jobs.size > 1) Files.createTempDirectory("upscayl-batch-") else null
+        try {
+            val staged = BooleanArray(jobs.size) { true }
+            val (input, output) = if (batchDir == null) {
+                if (!head.input.exists()) {
+                    failures.incrementAndGet()
+                    return listOf(false)
+                }
+                head.input to head.output
+            } else {
+                val inDir = Files.createDirectories(batchDir.resolve("in"))
+                val outDir = Files.createDirectories(batchDir.resolve("out"))
+                jobs.forEachIndexed { i, job ->
+                    try {
+                        linkOrCopy(job.input, inDir.resolve("job-$i.${job.input.extension}"))
+                    } catch (e: Exception) {
+                        log.warn("upscayl input {} unavailable: {}", job.input, e.message)
+                        staged[i] = false
+                    }
+                }
+                inDir to outDir
+            }
+            val count = staged.count { it }
+            if (count == 0) {
+                failures.incrementAndGet()
+                return jobs.map { false }
+            }
+            val exitCode = runProcess(
+                Upscayl(executable)
+                    .input(input.toString())
+                    .output(output.toString())
+                    .model(head.model)
+                    .scale(head.scale)
+                    .format(head.format)
+                    .apply { head.tile?.let { tile(it) } },
+                running,
+                config.jobTimeoutSeconds * count
+            )
+            if (exitCode != 0) {
+                log.warn("upscayl exited with code {} (model={}, batch={})", exitCode, head.model, jobs.size)
+            }
+            val results = if (batchDir == null) {
+                listOf(head.output.exists())
+            } else {
+                jobs.mapIndexed { i, job ->
+                    val produced = output.resolve("job-$i.${head.format}")
+                    if (!staged[i] || !produced.exists()) return@mapIndexed false
+                    try {
+                        Files.move(produced, job.output, StandardCopyOption.REPLACE_EXISTING)
+                        true
+                    } catch (e: Exception) {
+                        log.warn("upscayl output {} could not be delivered: {}", job.output, e.message)
+                        false
+                    }
+                }
+            }
+            if (results.any { !it }) failures.incrementAndGet()
+            return results
+        } catch (e: Exception) {
+            failures.incrementAndGet()
+            throw e
+        } finally {
+            val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+            latencies.computeIfAbsent(head.model) { ModelLatency() }.record(elapsed, jobs.size)
+            batchDir?.toFile()?.deleteRecursively()
+        }
+    }
+
+    /**
+     * timeoutSeconds 按批次图片数放大，整批目录模式不会因图片数多而比逐张执行更早超时
+     */
+    private fun runProcess(upscayl: Upscayl, running: RunningProcess, timeoutSeconds: Long): Int {
+        val process = upscayl.start(File("."))
+        running.attach(process)
+        val stdout = drain(process.inputStream) { log.debug("upscayl: {}", it) }
+        val stderr = drain(process.errorStream) { log.debug("upscayl: {}", it) }
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                timeouts.incrementAndGet()
+                process.destroyForcibly()
+                throw TimeoutException("upscayl timed out after ${timeoutSeconds}s")
+            }
+            return process.exitValue()
+        } catch (e: InterruptedException) {
+            process.destroyForcibly()
+            Thread.currentThread().interrupt()
+            throw CancellationException("upscayl interrupted")
+        } finally {
+            stdout.cancel(true)
+            stderr.cancel(true)
+        }
+    }
+
+    private fun drain(stream: InputStream, onLine: (String) -> Unit): Future<*> = drainer.submit {
+        try {
+            stream.bufferedReader().lines().forEach(onLine)
+        } catch (_: Exception) {
+        }
+    }
+
+    private fun linkOrCopy(source: Path, target: Path) {
+        try {
+            Files.createLink(target, source)
+        } catch (_: Exception) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    fun stats(): UpscaylPoolStats = UpscaylPoolStats(
+        workers = config.workers,
+        active = executor.activeCount,
+        queueDepth = executor.queue.size,
+        completed = executor.completedTaskCount,
+        timeouts = timeouts.get(),
+        failures = failures.get(),
+        rejected = rejected.get(),
+        models = latencies.mapValues { (_, v) -> v.snapshot() },
+    )
+
+    @PreDestroy
+    fun close() {
+        executor.shutdownNow()
+        drainer.shutdownNow()
+    }
+
+    private class RunningProcess {
+        @Volatile
+        private var process: Process? = null
+
+        @Volatile
+        private var destroyed = false
+
+        fun attach(p: Process) {
+            process = p
+            if (destroyed) p.destroyForcibly()
+        }
+
+        fun destroy() {
+            destroyed = true
+            process?.destroyForcibly()
+        }
+    }
+
+    private class ModelLatency {
+        private val invocations = AtomicLong()
+        private val images = AtomicLong()
+        private val totalMs = AtomicLong()
+        private val maxMs = AtomicLong()
+
+        fun record(elapsedMs: Long, count: Int) {
+            invocations.incrementAndGet()
+            images.addAndGet(count.toLong())
+            totalMs.addAndGet(elapsedMs)
+            maxMs.accumulateAndGet(elapsedMs) { a, b -> maxOf(a, b) }
+        }
+
+        fun snapshot(): ModelLatencyStats {
+            val n = invocations.get()
+            return ModelLatencyStats(
+                invocations = n,
+                images = images.get(),
+                avgMs = if (n == 0L) 0 else totalMs.get() / n,
+                maxMs = maxMs.get(),
+            )
+        }
+    }
+
+    private fun resolveExecutable(userDir: String): String {
+        val libsDir = Path(userDir).resolve("libs")
+        val osName = System.getProperty("os.name").lowercase()
+        val isWindows = osName.contains("win")
+        val isMac = osName.contains("mac") || osName.contains("darwin")
+        val isLinux = osName.contains("nux") || osName.contains("nix") || osName.contains("linux")
+        val candidates = when {
+            isWindows -> listOf(
+                libsDir.resolve("win").resolve("upscayl-bin.exe"),
+                Path(userDir).resolve("upscayl-bin.exe")
+            )
+
+            isMac -> listOf(
+                libsDir.resolve("mac").resolve("upscayl-bin"),
+                Path(userDir).resolve("upscayl-bin")
+            )
+
+            isLinux -> listOf(
+                libsDir.resolve("linux").resolve("upscayl-bin"),
+                Path(userDir).resolve("upscayl-bin")
+            )
+
+            else -> listOf(
+                libsDir.resolve("linux").resolve("upscayl-bin"),
+                Path(userDir).resolve("upscayl-bin")
+            )
+        }
+        val selected = candidates.firstOrNull { it.toFile().exists() } ?: when {
+            isWindows -> libsDir.resolve("win").resolve("upscayl-bin.exe")
+            isMac -> libsDir.resolve("mac").resolve("upscayl-bin")
+            else -> libsDir.resolve("linux").resolve("upscayl-bin")
+        }
+        return selected.toAbsolutePath().toString()
+    }
+}
+
+@Serdeable
+data class UpscaylPoolStats(
+    val workers: Int,
+    val active: Int,
+    val queueDepth: Int,
+    val completed: Long,
+    val timeouts: Long,
+    val failures: Long,
+    val rejected: Long,
+    val models: Map<String, ModelLatencyStats>,
+)
+
+@Serdeable
+data class ModelLatencyStats(
+    val invocations: Long,
+    val images: Long,
+    val avgMs: Long,
+    val maxMs: Long,
+)
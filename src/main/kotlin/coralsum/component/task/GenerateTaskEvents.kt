@@ -0,0 +1,32 @@
+package coralsum.component.task
+
+import coralsum.service.GenTaskEvent
+import jakarta.inject.Singleton
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.map
+
+/**
+ * 生成任务事件总线：状态流转与单个候选完成时发布，SSE 与长轮询按 uid + sid 订阅。
+ * 事件不落库，订阅方需先订阅再读取任务快照，缓冲溢出时丢弃最旧事件。
+ */
+@Singleton
+class GenerateTaskEvents {
+
+    private class Envelope(val uid: String, val event: GenTaskEvent)
+
+    private val events = MutableSharedFlow<Envelope>(
+        extraBufferCapacity = 1024,
+        onBufferOverflow = BufferOverflow.DROP_OLDEST
+    )
+
+    fun publish(uid: String, event: GenTaskEvent) {
+        events.tryEmit(Envelope(uid, event))
+    }
+
+    fun subscribe(uid: String, sid: String): Flow<GenTaskEvent> {
+        return events.filter { it.uid == uid && it.event.sid == sid }.map { it.event }
+    }
+}
@@ -0,0 +1,273 @@
+package coralsum.component.task
+
+import coralsum.common.enums.GenTaskStatue
+import coralsum.common.enums.GenTaskType
+import coralsum.common.enums.MembershipTier
+import coralsum.component.concurrent.FairShareScheduler
+import coralsum.component.concurrent.QueueEstimate
+import coralsum.component.concurrent.ScheduleOwner
+import coralsum.component.excption.BusinessException
+import coralsum.config.GenerateTaskConfig
+import coralsum.infrastructure.entity.GenerateTask
+import coralsum.infrastructure.repository.GenerateTaskRepository
+import coralsum.service.GenResult
+import coralsum.service.GenTaskEvent
+import coralsum.toolkit.logger
+import io.micronaut.context.event.StartupEvent
+import io.micronaut.json.JsonMapper
+import io.micronaut.runtime.event.annotation.EventListener
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.annotation.PreDestroy
+import jakarta.inject.Provider
+import jakarta.inject.Singleton
+import kotlinx.coroutines.*
+import java.time.LocalDateTime
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * 执行异步生成任务的处理器，由生成服务实现
+ */
+interface GenerateTaskHandler {
+    suspend fun handle(task: GenerateTask): GenResult
+
+    suspend fun tierOf(uid: String): MembershipTier
+}
+
+/**
+ * 持久化的生成任务队列：任务先落库为 QUEUED，再经公平调度器的 tasks 通道按用户与会员层级分配执行槽位，
+ * 启动时恢复未完成的任务，停机时等待执行中的任务结束，排队中的任务留待下次启动。
+ */
+@Singleton
+class GenerateTaskQueue(
+    private val config: GenerateTaskConfig,
+    private val repository: GenerateTaskRepository,
+    private val jsonMapper: JsonMapper,
+    private val handler: Provider<GenerateTaskHandler>,
+    private val events: GenerateTaskEvents,
+    private val scheduler: FairShareScheduler,
+) {
+
+    private val log = logger<GenerateTaskQueue>()
+
+    private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    // 已派发的任务协程；waiting 为尚未取得执行槽位的部分，停机时直接取消
+    private val jobs = ConcurrentHashMap<Long, Job>()
+    private val waiting = ConcurrentHashMap<Long, Job>()
+
+    private val closed = AtomicBoolean()
+
+    @Volatile
+    private var closing = false
+
+    private val running = AtomicInteger()
+    private val submitted = AtomicLong()
+    private val completed = AtomicLong()
+    private val failed = AtomicLong()
+    private val resumed = AtomicLong()
+
+    @EventListener
+    fun onStartup(event: StartupEvent) {
+        runBlocking { resume() }
+        log.info("generate task queue started with {} slots, resumed {} tasks", config.workers, resumed.get())
+    }
+
+    internal suspend fun resume() {
+        val pending = repository.findAllByStatusInOrderByIdAsc(listOf(GenTaskStatue.QUEUED, GenTaskStatue.PROCESSING))
+        for (task in pending) {
+            if (task.status == GenTaskStatue.PROCESSING) {
+                if (task.attempts >= config.maxAttempts) {
+                    finish(task, GenTaskStatue.FAILED, null, "任务执行中断")
+                    continue
+                }
+                task.status = GenTaskStatue.QUEUED
+                repository.update(task)
+            }
+            dispatch(task)
+            resumed.incrementAndGet()
+        }
+    }
+
+    suspend fun submit(uid: String, sid: String, type: GenTaskType, payload: Any): GenerateTask {
+        if (closing) throw BusinessException("服务正在重启，请稍后再试")
+        val task = repository.save(
+            GenerateTask(
+                sid = sid,
+                uid = uid,
+                taskType = type,
+                status = GenTaskStatue.QUEUED,
+                payload = jsonMapper.writeValueAsString(payload),
+            )
+        )
+        events.publish(uid, GenTaskEvent(sid = sid, status = GenTaskStatue.QUEUED))
+        submitted.incrementAndGet()
+        dispatch(task)
+        return task
+    }
+
+    /**
+     * 每个任务一个协程，在 tasks 通道中按公平份额等待执行槽位；
+     * 协程内任何未预期的异常都转为任务失败，保证客户端总能收到终态事件
+     */
+    private fun dispatch(task: GenerateTask) {
+        val id = task.id!!
+        val job = scope.launch(CoroutineName("generate-task-$id"), start = CoroutineStart.LAZY) {
+            try {
+                val owner = ScheduleOwner(task.uid, tierOf(task.uid))
+                scheduler.tasks.withSlot(owner, task.sid) {
+                    waiting.remove(id)
+                    if (!closing) run(id)
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                abort(task, e)
+            }
+        }
+        jobs[id] = job
+        waiting[id] = job
+        job.invokeOnCompletion {
+            jobs.remove(id)
+            waiting.remove(id)
+        }
+        job.start()
+    }
+
+    /**
+     * 排队中的任务返回在 tasks 通道中的位置与预计完成时间
+     */
+    fun estimate(task: GenerateTask): QueueEstimate? {
+        if (task.status != GenTaskStatue.QUEUED) return null
+        return scheduler.tasks.estimate(task.sid)
+    }
+
+    /**
+     * 同一 sid 可能被重复提交，取最近一次
+     */
+    suspend fun find(uid: String, sid: String): GenerateTask? {
+        return repository.findAllByUidAndSid(uid, sid).maxByOrNull { it.id!! }
+    }
+
+    fun <T> payload(task: GenerateTask, type: Class<T>): T = jsonMapper.readValue(task.payload!!, type)
+
+    /**
+     * 排队中或执行中的指定类型任务
+     */
+    suspend fun unfinished(type: GenTaskType): List<GenerateTask> {
+        return repository.findAllByStatusInOrderByIdAsc(listOf(GenTaskStatue.QUEUED, GenTaskStatue.PROCESSING))
+            .filter { it.taskType == type }
+    }
+
+    /**
+     * 会员层级只影响调度权重，查询失败时按免费用户排队而不是放弃任务
+     */
+    private suspend fun tierOf(uid: String): MembershipTier {
+        return try {
+            handler.get().tierOf(uid)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.warn("查询会员层级失败，按免费用户调度: {}", e.message)
+            MembershipTier.FREE
+        }
+    }
+
+    fun result(task: GenerateTask): GenResult? = task.result?.let { jsonMapper.readValue(it, GenResult::class.java) }
+
+    private suspend fun run(id: Long) {
+        val task = repository.findById(id) ?: return
+        if (task.status != GenTaskStatue.QUEUED) return
+        running.incrementAndGet()
+        try {
+            process(task)
+        } finally {
+            running.decrementAndGet()
+        }
+    }
+
+    private suspend fun process(task: GenerateTask) {
+        task.status = GenTaskStatue.PROCESSING
+        task.attempts += 1
+        task.startTime = LocalDateTime.now()
+        repository.update(task)
+        events.publish(task.uid, GenTaskEvent(sid = task.sid, status = GenTaskStatue.PROCESSING))
+        try {
+            val result = handler.get().handle(task)
+            finish(task, GenTaskStatue.COMPLETED, result, null)
+            completed.incrementAndGet()
+        } catch (e: CancellationException) {
+            // 停机超时被取消，保持 PROCESSING，下次启动时恢复
+            throw e
+        } catch (e: Exception) {
+            log.error("生成任务失败: {}", e.message, e)
+            finish(task, GenTaskStatue.FAILED, null, e.message)
+            failed.incrementAndGet()
+        }
+    }
+
+    private suspend fun finish(task: GenerateTask, status: GenTaskStatue, result: GenResult?, error: String?) {
+        task.status = status
+        task.result = result?.let { jsonMapper.writeValueAsString(it) }
+        task.errorMessage = error?.take(1000)
+        task.finishTime = LocalDateTime.now()
+        repository.update(task)
+        events.publish(task.uid, GenTaskEvent(sid = task.sid, status = status, result = result))
+    }
+
+    /**
+     * 调度或落库失败时尽力把任务置为失败；已结束的任务只补发终态事件，落库仍失败时也直接发布失败事件
+     */
+    private suspend fun abort(task: GenerateTask, error: Exception) {
+        log.error("生成任务异常终止: {}", error.message, error)
+        failed.incrementAndGet()
+        try {
+            val current = repository.findById(task.id!!) ?: task
+            if (current.status == GenTaskStatue.QUEUED || current.status == GenTaskStatue.PROCESSING) {
+                finish(current, GenTaskStatue.FAILED, null, error.message)
+            } else {
+                events.publish(current.uid, GenTaskEvent(sid = current.sid, status = current.status, result = result(current)))
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.warn("生成任务失败状态落库失败: {}", e.message)
+            events.publish(task.uid, GenTaskEvent(sid = task.sid, status = GenTaskStatue.FAILED))
+        }
+    }
+
+    fun stats(): GenerateTaskQueueStats = GenerateTaskQueueStats(
+        workers = config.workers,
+        running = running.get(),
+        queued = scheduler.tasks.queued,
+        submitted = submitted.get(),
+        completed = completed.get(),
+        failed = failed.get(),
+        resumed = resumed.get(),
+    )
+
+    @PreDestroy
+    fun close() {
+        if (!closed.compareAndSet(false, true)) return
+        closing = true
+        waiting.values.forEach { it.cancel() }
+        runBlocking {
+            withTimeoutOrNull(config.shutdownTimeoutSeconds.seconds) { jobs.values.toList().joinAll() }
+        }
+        scope.cancel()
+    }
+}
+
+@Serdeable
+data class GenerateTaskQueueStats(
+    val workers: Int,
+    val running: Int,
+    val queued: Int,
+    val submitted: Long,
+    val completed: Long,
+    val failed: Long,
+    val resumed: Long,
+)
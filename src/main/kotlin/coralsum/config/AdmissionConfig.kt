@@ -0,0 +1,26 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("admission")
+class AdmissionConfig {
+    /**
+     * 是否在接口入口按预计排队时间做准入控制
+     */
+    var enabled: Boolean = true
+
+    /**
+     * 同步生成允许的最长预计排队时间（秒），超过则直接返回 429
+     */
+    var generateSloSeconds: Long = 60
+
+    /**
+     * 异步任务允许的最长预计排队时间（秒）
+     */
+    var taskSloSeconds: Long = 600
+
+    /**
+     * 429 响应中 Retry-After 的上限（秒）
+     */
+    var maxRetryAfterSeconds: Long = 120
+}
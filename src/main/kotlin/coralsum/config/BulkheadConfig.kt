@@ -0,0 +1,26 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("bulkhead")
+class BulkheadConfig {
+    /**
+     * Gemini 文件接口（同步上传/删除）的并行度，与模型类型无关
+     */
+    var geminiFiles: Int = 16
+
+    /**
+     * 放大相关的文件读写与调度
+     */
+    var upscale: Int = 8
+
+    /**
+     * 对象存储上传/下载
+     */
+    var storage: Int = 16
+
+    /**
+     * 阻塞式数据库工作（同步事件监听等）
+     */
+    var db: Int = 8
+}
@@ -0,0 +1,38 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("fair-share")
+class FairShareConfig {
+    /**
+     * 各会员层级的调度权重，权重越大分得的并发份额越多
+     */
+    var freeWeight: Int = 1
+
+    var plusWeight: Int = 2
+
+    var proWeight: Int = 4
+
+    /**
+     * 单个用户同时进行中的模型调用上限（按候选计）
+     */
+    var freeMaxInFlight: Int = 2
+
+    var plusMaxInFlight: Int = 4
+
+    var proMaxInFlight: Int = 8
+
+    /**
+     * 单个用户同时执行的异步任务上限
+     */
+    var freeMaxTasks: Int = 1
+
+    var plusMaxTasks: Int = 2
+
+    var proMaxTasks: Int = 4
+
+    /**
+     * 老化间隔（秒）：排队每满该时长，相当于提前一个单位的服务份额，避免低权重用户饿死
+     */
+    var agingSeconds: Long = 10
+}
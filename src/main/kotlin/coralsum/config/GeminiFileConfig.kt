@@ -0,0 +1,48 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("gemini-file")
+class GeminiFileConfig {
+    /**
+     * 是否按内容摘要复用已上传的参考图片
+     */
+    var reuseEnabled: Boolean = true
+
+    /**
+     * Files API 文件的存活时间（小时），到期后由服务端自动删除
+     */
+    var ttlHours: Long = 48
+
+    /**
+     * 复用时文件至少还需存活的时间（小时），保证排队中的生成任务执行时文件仍然可用
+     */
+    var reuseMarginHours: Long = 6
+
+    /**
+     * 文件超过该时间（小时）未被上传或复用时由清理任务删除；须长于上传会话与任务排队的最长时间
+     */
+    var idleHours: Long = 6
+
+    /**
+     * 内存中缓存的摘要映射数量上限
+     */
+    var cacheSize: Long = 10_000
+
+    /**
+     * 清理任务每批删除的文件数及并发删除数
+     */
+    var reapBatchSize: Int = 100
+
+    var reapConcurrency: Int = 8
+
+    /**
+     * 不超过该字节数的参考图片保存在上传会话中，生成时内联发送，省去上传、查询与删除；0 表示全部走 Files API
+     */
+    var inlineMaxBytes: Int = 1_048_576
+
+    /**
+     * 单个生成请求内联图片的总字节上限，超出部分转存 Files API；base64 编码约膨胀 4/3，须留在 Gemini 20MB 请求体上限之内
+     */
+    var inlineRequestMaxBytes: Long = 12L * 1024 * 1024
+}
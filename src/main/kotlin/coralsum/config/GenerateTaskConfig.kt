@@ -0,0 +1,31 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("generate-task")
+class GenerateTaskConfig {
+    /**
+     * 同时执行的异步任务上限，即公平调度器 tasks 通道的槽位数
+     */
+    var workers: Int = 8
+
+    /**
+     * 任务最多执行次数；重启时仍处于执行中的任务会重新排队，超过次数则置为失败
+     */
+    var maxAttempts: Int = 2
+
+    /**
+     * 停机时等待执行中任务完成的最长时间（秒），超时未完成的任务下次启动时恢复
+     */
+    var shutdownTimeoutSeconds: Long = 120
+
+    /**
+     * 已结束任务的保留天数
+     */
+    var retentionDays: Long = 7
+
+    /**
+     * 任务事件 SSE 的心跳间隔（秒），防止代理在长时间无事件时断开连接
+     */
+    var sseHeartbeatSeconds: Long = 15
+}
@@ -0,0 +1,31 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("generator")
+class GeneratorConfig {
+    /**
+     * 同时进行中的模型调用上限
+     */
+    var maxInFlight: Int = 60
+
+    /**
+     * 超出并发上限后允许排队等待的调用数，再多则直接返回 429
+     */
+    var maxQueued: Int = 1000
+
+    /**
+     * 429 响应中建议的重试间隔（秒）
+     */
+    var retryAfterSeconds: Long = 5
+
+    /**
+     * 候选后处理中同时编码的图片数，0 表示取 CPU 核数
+     */
+    var encodeConcurrency: Int = 0
+
+    /**
+     * 候选后处理中同时上传到对象存储的图片数
+     */
+    var uploadConcurrency: Int = 8
+}
@@ -1,9 +1,71 @@
 package coralsum.config
 
+import com.google.genai.HttpTuning
 import io.micronaut.context.annotation.ConfigurationProperties
 
 @ConfigurationProperties("google")
 class GoogleConfig {
     lateinit var vertxApiKey: String
     lateinit var geminiApiKey: String
-}
\ No newline at end of file
+
+    /**
+     * Gemini 密钥池；为空时仅使用 geminiApiKey
+     */
+    var geminiApiKeys: List<String> = emptyList()
+
+    /**
+     * 单个密钥每分钟的请求数与 token 配额，0 表示不限制
+     */
+    var keyRequestsPerMinute: Int = 0
+
+    var keyTokensPerMinute: Long = 0
+
+    /**
+     * 密钥返回配额错误后暂停使用的时长（秒）
+     */
+    var keyCooldownSeconds: Long = 60
+
+    /**
+     * Gemini HTTP 客户端：所有密钥共享的调度器并发上限（总数与单主机）
+     */
+    var httpMaxRequests: Int = 256
+
+    var httpMaxRequestsPerHost: Int = 128
+
+    /**
+     * 连接池的最大空闲连接数与保活时长（秒）
+     */
+    var httpMaxIdleConnections: Int = 32
+
+    var httpKeepAliveSeconds: Long = 300
+
+    /**
+     * 优先协商 HTTP/2，同一连接多路复用多个请求
+     */
+    var httpPreferHttp2: Boolean = true
+
+    /**
+     * 套接字超时（毫秒），0 表示不限制；整次调用另有 5 分钟总超时
+     */
+    var httpConnectTimeoutMillis: Long = 10000
+
+    var httpReadTimeoutMillis: Long = 0
+
+    var httpWriteTimeoutMillis: Long = 60000
+
+    fun httpSettings(): HttpTuning.Settings = HttpTuning.Settings().also {
+        it.maxRequests = httpMaxRequests
+        it.maxRequestsPerHost = httpMaxRequestsPerHost
+        it.maxIdleConnections = httpMaxIdleConnections
+        it.keepAliveSeconds = httpKeepAliveSeconds
+        it.preferHttp2 = httpPreferHttp2
+        it.connectTimeoutMillis = httpConnectTimeoutMillis
+        it.readTimeoutMillis = httpReadTimeoutMillis
+        it.writeTimeoutMillis = httpWriteTimeoutMillis
+    }
+
+    fun geminiKeys(): List<String> {
+        val keys = geminiApiKeys.map { it.trim() }.filter { it.isNotEmpty() }.distinct()
+        return keys.ifEmpty { listOf(geminiApiKey) }
+    }
+}
@@ -0,0 +1,33 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("hedge")
+class HedgeConfig {
+    /**
+     * 是否对 BASIC 模型调用启用对冲请求
+     */
+    var enabled: Boolean = false
+
+    /**
+     * 调用超过该分位耗时仍未返回时发出对冲请求
+     */
+    var percentile: Double = 0.9
+
+    /**
+     * 对冲请求占调用量的上限（百分比）
+     */
+    var budgetPercent: Double = 5.0
+
+    /**
+     * 统计耗时的滑动窗口大小，以及开始对冲前至少需要的样本数
+     */
+    var windowSize: Int = 500
+
+    var minSamples: Int = 50
+
+    /**
+     * 对冲等待时间下限（毫秒），避免在耗时样本偏低时过早对冲
+     */
+    var minDelayMillis: Long = 2000
+}
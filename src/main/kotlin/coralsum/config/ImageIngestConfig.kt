@@ -0,0 +1,42 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("image-ingest")
+class ImageIngestConfig {
+    /**
+     * 读取上传流的缓冲区大小（字节），以及缓冲池保留的缓冲区数量
+     */
+    var bufferSize: Int = 64 * 1024
+
+    var bufferPoolSize: Int = 64
+
+    /**
+     * 单个上传在内存中暂存的上限（字节），超过后转存到临时文件
+     */
+    var spoolThresholdBytes: Int = 1_048_576
+
+    /**
+     * 参考图片与模板图片的大小上限（字节），读取超过上限时立即中止
+     */
+    var referenceMaxBytes: Long = 20L * 1024 * 1024
+
+    var ideaMaxBytes: Long = 1_000_000
+
+    /**
+     * 模版图片直传对象存储的预签名地址有效期（秒）
+     */
+    var ideaPresignTtlSeconds: Long = 600
+
+    /**
+     * 清理孤儿模版图片时在预签名有效期之外额外等待的时间（秒），为迟到的完成回调留出余量
+     */
+    var ideaOrphanGraceSeconds: Long = 3600
+
+    /**
+     * 批量上传参考图片时单次请求的文件数上限，以及并行上传到 Files API 的数量
+     */
+    var batchMaxFiles: Int = 8
+
+    var batchConcurrency: Int = 4
+}
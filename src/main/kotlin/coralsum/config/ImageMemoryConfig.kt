@@ -0,0 +1,21 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("image-memory")
+class ImageMemoryConfig {
+    /**
+     * 解码/编码可同时占用的图片内存预算（字节）；为 0 时取最大堆的 1/4
+     */
+    var budgetBytes: Long = 0
+
+    /**
+     * 放大输出像素数超过该值时，upscayl 以分块模式执行以限制单进程内存
+     */
+    var tiledThresholdPixels: Long = 4096L * 4096
+
+    /**
+     * 分块模式下的 tile 尺寸
+     */
+    var tileSize: Int = 256
+}
@@ -0,0 +1,60 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("model-governor")
+class ModelGovernorConfig {
+    /**
+     * 自适应并发上限：初始值、下限与上限（每个模型独立）
+     */
+    var initialLimit: Int = 16
+
+    var minLimit: Int = 2
+
+    var maxLimit: Int = 64
+
+    /**
+     * 收到 429/503 或超时时的乘性回退比例
+     */
+    var backoffRatio: Double = 0.7
+
+    /**
+     * 单次耗时超过长期平均耗时的该倍数时视为排队积压，小幅收缩上限
+     */
+    var latencyTolerance: Double = 2.0
+
+    /**
+     * 熔断：统计最近 slidingWindowSize 次调用，样本数不少于 minimumCalls 且失败率达到阈值时打开
+     */
+    var slidingWindowSize: Int = 20
+
+    var minimumCalls: Int = 10
+
+    var failureRateThreshold: Double = 0.5
+
+    /**
+     * 熔断打开后的冷却时间（秒），之后进入半开状态放行少量探测请求
+     */
+    var openSeconds: Long = 30
+
+    var halfOpenProbes: Int = 3
+
+    /**
+     * 单个请求的最大尝试次数（含首次）
+     */
+    var maxAttempts: Int = 3
+
+    /**
+     * 重试退避：指数增长并叠加全抖动
+     */
+    var baseBackoffMillis: Long = 500
+
+    var maxBackoffMillis: Long = 8000
+
+    /**
+     * 重试预算：每个首次请求存入的重试额度，以及每秒保底恢复的额度
+     */
+    var retryBudgetRatio: Double = 0.1
+
+    var minRetriesPerSecond: Double = 1.0
+}
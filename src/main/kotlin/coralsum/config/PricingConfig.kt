@@ -125,5 +125,7 @@ class PricingConfig {
     class Upscayl {
         var enabled: Boolean = true
         var chargeByScale: Boolean = true
+        /** 单独放大已有图片时，每张图片每提升 1 倍的计算成本（USD） */
+        var pricePerImageUsd: Double = 0.005
     }
 }
@@ -0,0 +1,35 @@
+package coralsum.config
+
+import coralsum.common.enums.MediaResolution
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("reference-image")
+class ReferenceImageConfig {
+    /**
+     * 是否在上传时按媒体分辨率缩小并重新压缩参考图片
+     */
+    var enabled: Boolean = true
+
+    /**
+     * 各媒体分辨率下参考图片长边的上限（像素），超过时等比缩小；AUTO 仅限制过大的原图
+     */
+    var lowMaxEdge: Int = 768
+
+    var mediumMaxEdge: Int = 1536
+
+    var highMaxEdge: Int = 3072
+
+    var autoMaxEdge: Int = 3072
+
+    /**
+     * 无透明通道的图片重新压缩为 JPEG 时的质量
+     */
+    var jpegQuality: Float = 0.85f
+
+    fun maxEdge(resolution: MediaResolution?): Int = when (resolution) {
+        MediaResolution.LOW -> lowMaxEdge
+        MediaResolution.MEDIUM -> mediumMaxEdge
+        MediaResolution.HIGH -> highMaxEdge
+        else -> autoMaxEdge
+    }
+}
@@ -0,0 +1,51 @@
+package coralsum.config
+
+import io.micronaut.context.annotation.ConfigurationProperties
+
+@ConfigurationProperties("upscayl")
+class UpscaylConfig {
+    /**
+     * 可执行文件路径；为空时按操作系统在 libs 目录下自动查找
+     */
+    var executable: String? = null
+
+    /**
+     * 同时运行的 upscayl-bin 进程数（每个进程独占一次模型加载）
+     */
+    var workers: Int = 2
+
+    /**
+     * 等待执行的任务上限，超出后直接拒绝
+     */
+    var queueCapacity: Int = 200
+
+    /**
+     * 每张图片的超时时间（秒），合批执行时按批次图片数累加，超时后强制结束进程
+     */
+    var jobTimeoutSeconds: Long = 300
+
+    /**
+     * 跨请求合批的等待窗口（毫秒），为 0 时不合批
+     */
+    var batchWindowMillis: Long = 200
+
+    /**
+     * 单批最多图片数，达到后立即执行
+     */
+    var batchMaxImages: Int = 8
+
+    /**
+     * 是否启用放大结果缓存
+     */
+    var cacheEnabled: Boolean = true
+
+    /**
+     * 缓存目录；为空时使用 ${'$'}{store.base}/store/upscale-cache
+     */
+    var cacheDir: String? = null
+
+    /**
+     * 缓存目录总字节上限，超出后按最近最少使用淘汰
+     */
+    var cacheMaxBytes: Long = 2L * 1024 * 1024 * 1024
+}
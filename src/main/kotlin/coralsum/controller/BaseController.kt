@@ -2,8 +2,10 @@ package coralsum.controller
 
 import coralsum.common.dto.Res
 import coralsum.component.excption.BusinessException
+import coralsum.component.excption.TooManyRequestsException
 import coralsum.toolkit.logger
 import io.micronaut.http.HttpResponse
+import io.micronaut.http.HttpStatus
 import io.micronaut.http.annotation.Controller
 import io.micronaut.http.annotation.Error
 
@@ -17,4 +19,12 @@ class BaseController {
         logger.error(e.message)
         return HttpResponse.ok(Res.fail(e.message))
     }
+
+    @Error(TooManyRequestsException::class, global = true)
+    fun tooManyRequests(e: TooManyRequestsException): HttpResponse<Res<Any>> {
+        logger.warn(e.message)
+        val response = HttpResponse.status<Res<Any>>(HttpStatus.TOO_MANY_REQUESTS).body(Res.fail(e.message))
+        e.retryAfterSeconds?.let { response.header("Retry-After", it.toString()) }
+        return response
+    }
 }
\ No newline at end of file
@@ -5,7 +5,10 @@ import coralsum.common.enums.*
 import coralsum.common.response.GenResultResponse
 import coralsum.common.response.GenTaskResultResponse
 import coralsum.common.response.IntentAssessmentResponse
+import coralsum.common.response.UploadBatchResponse
 import coralsum.component.annotation.Debounce
+import coralsum.component.concurrent.AdmissionControl
+import coralsum.config.GenerateTaskConfig
 import coralsum.convert.GenerativeConvert
 import coralsum.infrastructure.repository.OpenUserRepository
 import coralsum.infrastructure.repository.OutletUserRepository
@@ -19,6 +22,7 @@ import io.micronaut.http.MediaType
 import io.micronaut.http.annotation.*
 import io.micronaut.http.exceptions.HttpStatusException
 import io.micronaut.http.multipart.StreamingFileUpload
+import io.micronaut.http.sse.Event
 import io.micronaut.http.server.cors.CrossOrigin
 import io.micronaut.http.server.util.HttpClientAddressResolver
 import io.micronaut.security.annotation.Secured
@@ -31,9 +35,14 @@ import io.swagger.v3.oas.annotations.tags.Tag
 import jakarta.validation.constraints.NotEmpty
 import jakarta.validation.constraints.Size
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.reactor.asFlux
 import kotlinx.coroutines.withContext
+import org.reactivestreams.Publisher
+import reactor.core.publisher.Flux
 import java.net.URI
 import java.net.URL
+import java.time.Duration
 import java.util.*
 
 @Validated
@@ -46,6 +55,8 @@ class GenerativeImageController(
     val openUserRepository: OpenUserRepository,
     val outletUserRepository: OutletUserRepository,
     val lms: LocalizedMessageSource,
+    val admissionControl: AdmissionControl,
+    val generateTaskConfig: GenerateTaskConfig,
 ) {
 
     @Secured(SecurityRule.IS_AUTHENTICATED)
@@ -73,6 +84,7 @@ class GenerativeImageController(
         @Parameter(description = "媒体分辨率") @Part mediaResolution: MediaResolution?,
         request: HttpRequest<*>,
     ): Res<GenResultResponse> {
+        admissionControl.admitGenerate(candidateCount ?: 1)
         val genReq = convert.toRequest(
             text,
             sid,
@@ -244,6 +256,7 @@ class GenerativeImageController(
         @Parameter(description = "媒体分辨率") @Part mediaResolution: MediaResolution?,
         request: HttpRequest<*>,
     ): Res<String?> {
+        admissionControl.admitTask(candidateCount ?: 1)
         val genReq = convert.toRequest(
             text,
             sid,
@@ -264,6 +277,23 @@ class GenerativeImageController(
         return Res.success(sessionId)
     }
 
+    @Secured(SecurityRule.IS_AUTHENTICATED)
+    @Version("v1")
+    @Post("/upscale")
+    @Operation(
+        summary = "放大已生成图片",
+        description = "对已生成的图片单独执行 Upscayl 放大，异步执行并返回任务ID，仅按放大部分计费"
+    )
+    @Debounce(name = "gi.upscale", windowMillis = 3000, byUid = true)
+    suspend fun submitUpscaleTask(
+        @Parameter(description = "图片引用", required = true) @QueryValue @NotEmpty ref: String,
+        @Parameter(description = "Upscayl模型", required = true) @QueryValue upscaylModel: UpscaylModel,
+        @Parameter(description = "Upscayl倍数", required = true) @QueryValue upscaylScale: UpscaylScale,
+    ): Res<String?> {
+        val sessionId = service.submitUpscaleTask(ref, upscaylModel, upscaylScale)
+        return Res.success(sessionId)
+    }
+
     @Secured(SecurityRule.IS_AUTHENTICATED)
     @Version("v1")
     @Post("/upload", consumes = [MediaType.MULTIPART_FORM_DATA])
@@ -272,15 +302,35 @@ class GenerativeImageController(
         description = "单文件上传，并缓存，返回会话ID"
     )
     @Debounce(name = "gi.upload", windowMillis = 3000, byUid = true)
-    suspend fun uploadImage(image: StreamingFileUpload, @Part("sid") sid: String?): Res<String?> {
-        val sessionId = service.uploadImage(image, sid)
+    suspend fun uploadImage(
+        image: StreamingFileUpload,
+        @Part("sid") sid: String?,
+        @Parameter(description = "媒体分辨率，决定参考图片缩小的目标尺寸") @Part("mediaResolution") mediaResolution: MediaResolution?,
+    ): Res<String?> {
+        val sessionId = service.uploadImage(image, sid, mediaResolution)
         return Res.success(sessionId)
     }
 
+    @Secured(SecurityRule.IS_AUTHENTICATED)
+    @Version("v1")
+    @Post("/upload/batch", consumes = [MediaType.MULTIPART_FORM_DATA])
+    @Operation(
+        summary = "批量上传参考图片",
+        description = "多文件上传，并行上传后一次性加入会话，返回会话ID与每个文件的结果"
+    )
+    @Debounce(name = "gi.upload.batch", windowMillis = 3000, byUid = true)
+    suspend fun uploadImages(
+        @Parameter(description = "参考图片，可重复") @Part("images") images: Publisher<StreamingFileUpload>,
+        @Part("sid") sid: String?,
+        @Parameter(description = "媒体分辨率，决定参考图片缩小的目标尺寸") @Part("mediaResolution") mediaResolution: MediaResolution?,
+    ): Res<UploadBatchResponse> {
+        return Res.success(service.uploadImages(images, sid, mediaResolution))
+    }
+
     @CrossOrigin(allowedOriginsRegex = ".*")
     @Secured(SecurityRule.IS_ANONYMOUS)
     @Version("v1")
-    @Options("/upload")
+    @Options(uris = ["/upload", "/upload/batch"])
     fun uploadOptions(request: HttpRequest<*>): HttpResponse<Any> {
         val origin = request.headers.get("Origin") ?: "*"
         return HttpResponse.ok<Any>().headers { headers ->
@@ -296,14 +346,48 @@ class GenerativeImageController(
     @Secured(SecurityRule.IS_AUTHENTICATED)
     @Version("v1")
     @Get("/get-task-result")
-    @Operation(summary = "查询生成任务结果", description = "按sid获取生成任务的状态与结果")
-    suspend fun getGenerateTaskResult(@QueryValue("sid") sid: String?): Res<GenTaskResultResponse> {
+    @Operation(
+        summary = "查询生成任务结果",
+        description = "按sid获取生成任务的状态与结果；传入 wait 时以长轮询方式等待状态变化（最多30秒）"
+    )
+    suspend fun getGenerateTaskResult(
+        @QueryValue("sid") sid: String?,
+        @Parameter(description = "长轮询等待秒数") @QueryValue("wait") wait: Int?,
+    ): Res<GenTaskResultResponse> {
         val generateTaskResult = if (sid.isNullOrBlank()) {
             coralsum.service.GenTaskResult(status = coralsum.common.enums.GenTaskStatue.NONE)
+        } else if (wait != null && wait > 0) {
+            service.awaitGenerateTaskResult(sid, wait)
         } else {
             service.getGenerateTaskResult(sid)
         }
         return Res.success(convert.toResponse(generateTaskResult))
     }
 
+    @Secured(SecurityRule.IS_AUTHENTICATED)
+    @Version("v1")
+    @Get("/task-events", produces = [MediaType.TEXT_EVENT_STREAM])
+    @Operation(
+        summary = "订阅生成任务事件",
+        description = "SSE 推送任务当前状态、状态流转与单个候选完成事件，任务失败时撤回已推送的候选，任务结束后关闭连接；" +
+                "无事件期间定期发送 heartbeat 事件"
+    )
+    fun taskEvents(@QueryValue("sid") @NotEmpty sid: String): Flux<Event<Any>> {
+        val events = service.taskEvents(sid)
+            .map { event ->
+                val name = when {
+                    event.retracted == true -> "retract"
+                    event.candidateIndex != null -> "candidate"
+                    else -> event.status.name.lowercase()
+                }
+                Event.of<Any>(event).name(name)
+            }
+            .asFlux()
+            .share()
+        val heartbeat = Flux.interval(Duration.ofSeconds(generateTaskConfig.sseHeartbeatSeconds.coerceAtLeast(1)))
+            .map { Event.of<Any>("").name("heartbeat") }
+            .takeUntilOther(events.ignoreElements())
+        return Flux.merge(events, heartbeat)
+    }
+
 }
@@ -4,6 +4,7 @@ import coralsum.common.dto.Res
 import com.aliyun.oss.OSS
 import com.aliyun.oss.HttpMethod
 import com.aliyun.oss.model.GeneratePresignedUrlRequest
+import coralsum.common.enums.IdeaImageSlot
 import coralsum.config.OssConfig
 import coralsum.config.PreviewConfig
 import coralsum.component.excption.BusinessException
@@ -212,6 +213,32 @@ class IdeaController(
         Res.fail(e.message)
     }
 
+    @Serdeable
+    @Introspected
+    data class PresignUploadReq(val slot: IdeaImageSlot, val contentType: String, val size: Long)
+
+    @Serdeable
+    @Introspected
+    data class CompleteUploadReq(val slot: IdeaImageSlot, val key: String)
+
+    @Post("/template/{id}/upload-url")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Operation(summary = "获取图片直传地址", description = "签发 OSS 预签名 PUT 地址，客户端直传后调用完成接口登记")
+    suspend fun presignUpload(@PathVariable id: Long, @Body req: PresignUploadReq) = try {
+        Res.success(service.presignImageUpload(id, req.slot, req.contentType, req.size))
+    } catch (e: BusinessException) {
+        Res.fail(e.message)
+    }
+
+    @Post("/template/{id}/upload-complete")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Operation(summary = "完成图片直传", description = "校验已直传对象的大小与类型并登记到模版")
+    suspend fun completeUpload(@PathVariable id: Long, @Body req: CompleteUploadReq) = try {
+        Res.success(service.completeImageUpload(id, req.slot, req.key))
+    } catch (e: BusinessException) {
+        Res.fail(e.message)
+    }
+
     @Delete("/template/{id}/original")
     @Operation(summary = "删除原图（按key）")
     suspend fun deleteOriginal(@PathVariable id: Long, @QueryValue("key") key: String) =
@@ -0,0 +1,68 @@
+package coralsum.controller
+
+import coralsum.common.dto.Res
+import coralsum.component.concurrent.AdmissionControl
+import coralsum.component.concurrent.Bulkheads
+import coralsum.component.concurrent.FairShareScheduler
+import coralsum.component.concurrent.GenerationExecutor
+import coralsum.component.concurrent.PostProcessStages
+import coralsum.component.image.ImageMemoryGovernor
+import coralsum.component.image.ReferenceImageScaler
+import coralsum.component.models.GeminiKeyPool
+import coralsum.component.models.HedgingPolicy
+import coralsum.component.models.ModelCallGovernor
+import coralsum.component.models.NanoBanana
+import coralsum.component.models.UpscaylBatchScheduler
+import coralsum.component.models.UpscaylWorkerPool
+import coralsum.component.task.GenerateTaskQueue
+import coralsum.infrastructure.cache.UpscaleResultCache
+import io.micronaut.http.annotation.Controller
+import io.micronaut.http.annotation.Get
+import io.micronaut.security.annotation.Secured
+import io.swagger.v3.oas.annotations.Operation
+import io.swagger.v3.oas.annotations.tags.Tag
+
+@Controller("/api/ctl/runtime-stats")
+@Tag(name = "运行时指标")
+@Secured("CTL")
+class RuntimeStatsController(
+    private val upscaylWorkerPool: UpscaylWorkerPool,
+    private val upscaylBatchScheduler: UpscaylBatchScheduler,
+    private val upscaleResultCache: UpscaleResultCache,
+    private val imageMemoryGovernor: ImageMemoryGovernor,
+    private val generationExecutor: GenerationExecutor,
+    private val bulkheads: Bulkheads,
+    private val postProcessStages: PostProcessStages,
+    private val generateTaskQueue: GenerateTaskQueue,
+    private val fairShareScheduler: FairShareScheduler,
+    private val admissionControl: AdmissionControl,
+    private val modelCallGovernor: ModelCallGovernor,
+    private val geminiKeyPool: GeminiKeyPool,
+    private val hedgingPolicy: HedgingPolicy,
+    private val referenceImageScaler: ReferenceImageScaler,
+) {
+
+    @Get
+    @Operation(summary = "运行时指标", description = "返回放大进程池等组件的队列深度、耗时与饱和度")
+    suspend fun stats(): Res<Map<String, Any>> {
+        return Res.success(
+            mapOf(
+                "upscayl" to upscaylWorkerPool.stats(),
+                "upscaylBatch" to upscaylBatchScheduler.stats(),
+                "upscaleCache" to upscaleResultCache.stats(),
+                "imageMemory" to imageMemoryGovernor.stats(),
+                "generator" to generationExecutor.stats(),
+                "bulkheads" to bulkheads.stats(),
+                "postProcess" to postProcessStages.stats(),
+                "generateTasks" to generateTaskQueue.stats(),
+                "fairShare" to fairShareScheduler.stats(),
+                "admission" to admissionControl.stats(),
+                "modelGovernor" to modelCallGovernor.stats(),
+                "geminiKeys" to geminiKeyPool.stats(),
+                "hedge" to hedgingPolicy.stats(),
+                "geminiHttp" to (NanoBanana.httpStats() ?: emptyMap<String, Any>()),
+                "referenceImages" to referenceImageScaler.stats(),
+            )
+        )
+    }
+}
@@ -0,0 +1,140 @@
+package coralsum.infrastructure.cache
+
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import coralsum.config.GeminiFileConfig
+import coralsum.infrastructure.entity.GeminiFile
+import coralsum.infrastructure.repository.GeminiFileRepository
+import coralsum.toolkit.logger
+import io.micronaut.data.model.Pageable
+import jakarta.inject.Singleton
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.time.Duration
+import java.time.LocalDateTime
+
+/**
+ * 内容摘要到 Gemini 文件的映射：相同内容再次上传时复用仍存活的文件，内存缓存在前、数据库兜底。
+ * 文件不再随生成结束立即删除，而是在闲置超时后由清理任务分批删除，闲置窗口末尾的文件不再复用，避免与清理竞争。
+ */
+@Singleton
+class GeminiFileRegistry(
+    private val config: GeminiFileConfig,
+    private val repository: GeminiFileRepository,
+) {
+
+    private val log = logger<GeminiFileRegistry>()
+
+    // 键为 摘要:密钥标识，文件只能由上传它的密钥访问
+    private val cache: Cache<String, GeminiFile> = Caffeine.newBuilder()
+        .expireAfterWrite(Duration.ofHours(1))
+        .maximumSize(config.cacheSize)
+        .build()
+
+    /**
+     * 查找可复用的文件；keyId 非空时只接受该密钥下的文件（会话内图片须同属一个密钥）
+     */
+    suspend fun find(contentHash: String, keyId: String?): GeminiFile? {
+        if (!config.reuseEnabled) return null
+        val now = LocalDateTime.now()
+        val cached = keyId?.let { cache.getIfPresent(cacheKey(contentHash, it)) }
+        val file = cached?.takeIf { reusable(it, now) }
+            ?: repository.findAllByContentHashAndExpireTimeAfter(contentHash, now)
+                .filter { (keyId == null || it.keyId == keyId) && reusable(it, now) }
+                .maxByOrNull { it.expireTime }
+            ?: return null
+        file.lastUsedTime = now
+        repository.touch(file.id!!, now)
+        cache.put(cacheKey(contentHash, file.keyId), file)
+        return file
+    }
+
+    suspend fun register(
+        contentHash: String,
+        keyId: String,
+        fileRef: String,
+        fileUri: String,
+        mimeType: String,
+        sizeBytes: Int,
+    ): GeminiFile {
+        val now = LocalDateTime.now()
+        val saved = repository.save(
+            GeminiFile(
+                contentHash = contentHash,
+                keyId = keyId,
+                fileRef = fileRef,
+                fileUri = fileUri,
+                mimeType = mimeType,
+                sizeBytes = sizeBytes,
+                expireTime = now.plusHours(config.ttlHours),
+                lastUsedTime = now,
+            )
+        )
+        cache.put(cacheKey(contentHash, keyId), saved)
+        return saved
+    }
+
+    /**
+     * 文件被生成请求解析或被任务固化时刷新最近使用时间，使用中的文件不会因闲置被清理
+     */
+    suspend fun touch(fileRefs: Collection<String>) {
+        if (fileRefs.isEmpty()) return
+        repository.touchByFileRefIn(fileRefs.distinct(), LocalDateTime.now())
+    }
+
+    /**
+     * 剩余存活时间足够且未临近闲置清理的文件才可复用
+     */
+    private fun reusable(file: GeminiFile, now: LocalDateTime): Boolean {
+        return file.expireTime.isAfter(now.plusHours(config.reuseMarginHours)) &&
+                file.lastUsedTime.isAfter(now.minusHours(config.idleHours).plus(REAP_GUARD))
+    }
+
+    /**
+     * 分批删除闲置或已过期的文件，返回删除的记录数；已过期的文件已被服务端删除，仅清理记录。
+     * pinned 为排队中或执行中任务引用的文件，未过期时刷新使用时间保留；evict 用于清除调用方持有的文件元数据缓存
+     */
+    suspend fun reap(
+        pinned: Set<String>,
+        evict: (String) -> Unit,
+        delete: suspend (String) -> Unit,
+    ): Int {
+        val now = LocalDateTime.now()
+        val idleCutoff = now.minusHours(config.idleHours)
+        val permits = Semaphore(config.reapConcurrency.coerceAtLeast(1))
+        var total = 0
+        while (true) {
+            val batch = repository.findAllByExpireTimeBeforeOrLastUsedTimeBefore(
+                now,
+                idleCutoff,
+                Pageable.from(0, config.reapBatchSize)
+            )
+            if (batch.isEmpty()) break
+            val (kept, reaped) = batch.partition { it.fileRef in pinned && it.expireTime.isAfter(now) }
+            kept.forEach { repository.touch(it.id!!, now) }
+            reaped.forEach {
+                cache.invalidate(cacheKey(it.contentHash, it.keyId))
+                evict(it.fileRef)
+            }
+            coroutineScope {
+                reaped.filter { it.expireTime.isAfter(now) }
+                    .map { file -> async { permits.withPermit { delete(file.fileRef) } } }
+                    .awaitAll()
+            }
+            if (reaped.isNotEmpty()) total += repository.deleteByIdIn(reaped.mapNotNull { it.id }).toInt()
+            if (batch.size < config.reapBatchSize) break
+        }
+        if (total > 0) log.info("清理 Gemini 文件 {} 个", total)
+        return total
+    }
+
+    private fun cacheKey(contentHash: String, keyId: String) = "$contentHash:$keyId"
+
+    private companion object {
+        // 闲置窗口最后这段时间内的文件不再复用，留给清理任务删除
+        val REAP_GUARD: Duration = Duration.ofHours(1)
+    }
+}
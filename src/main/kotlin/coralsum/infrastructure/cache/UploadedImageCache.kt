@@ -1,16 +1,70 @@
 package coralsum.infrastructure.cache
 
+import com.github.benmanes.caffeine.cache.Weigher
 import io.micronaut.cache.annotation.CacheInvalidate
 import io.micronaut.cache.annotation.CachePut
 import io.micronaut.cache.annotation.Cacheable
+import io.micronaut.context.annotation.Factory
 import io.micronaut.serde.annotation.Serdeable
+import jakarta.inject.Named
 import jakarta.inject.Singleton
 import java.io.Serializable
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 
 @Serdeable
-data class UploadedImageRef(val uri: String, val mimeType: String, val size: Int = 0) : Serializable
+data class UploadedImageRef(
+    val uri: String,
+    val mimeType: String,
+    val size: Int = 0,
+    /** Files API 返回的文件 URI，生成时可直接构造 Part，无需再次 files.get */
+    val fileUri: String? = null,
+    /** 小图直接保存字节，生成时作为内联数据发送，uri 为内联引用 */
+    val data: ByteArray? = null,
+    /** 缩小与重新压缩前的原始字节数，size 为实际发送给模型的字节数 */
+    val originalSize: Int = 0,
+) : Serializable {
+    // 数组默认按引用比较，内联字节按内容参与相等性
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (other !is UploadedImageRef) return false
+        return uri == other.uri &&
+            mimeType == other.mimeType &&
+            size == other.size &&
+            fileUri == other.fileUri &&
+            data.contentEquals(other.data) &&
+            originalSize == other.originalSize
+    }
+
+    override fun hashCode(): Int {
+        var result = uri.hashCode()
+        result = 31 * result + mimeType.hashCode()
+        result = 31 * result + size
+        result = 31 * result + (fileUri?.hashCode() ?: 0)
+        result = 31 * result + data.contentHashCode()
+        result = 31 * result + originalSize
+        return result
+    }
+}
+
+/**
+ * 会话中保存了内联图片的字节，按字节数而非条目数限制 uploaded-image-urls 缓存（maximum-weight）
+ */
+@Factory
+class UploadedImageCacheFactory {
+
+    @Singleton
+    @Named("uploaded-image-urls")
+    fun uploadedImageWeigher(): Weigher<Any, Any> = Weigher { _, value ->
+        val bytes = (value as? List<*>)?.sumOf { ((it as? UploadedImageRef)?.data?.size ?: 0).toLong() + REF_OVERHEAD } ?: 0L
+        bytes.coerceIn(1L, Int.MAX_VALUE.toLong()).toInt()
+    }
+
+    private companion object {
+        // 每个引用的元数据按固定开销计入
+        const val REF_OVERHEAD = 512L
+    }
+}
 
 @Singleton
 class UploadedImageCache {
@@ -23,11 +77,16 @@ class UploadedImageCache {
     @CachePut(cacheNames = ["uploaded-image-urls"], parameters = ["uid", "sid"], condition = "#{refs != null}")
     fun put(uid: String, sid: String, refs: List<UploadedImageRef>): List<UploadedImageRef> = refs
 
-    fun append(uid: String, sid: String, ref: UploadedImageRef): List<UploadedImageRef> {
+    fun append(uid: String, sid: String, ref: UploadedImageRef): List<UploadedImageRef> = appendAll(uid, sid, listOf(ref))
+
+    /**
+     * 一次性追加多张图片，会话中不会出现只追加了一部分的中间状态
+     */
+    fun appendAll(uid: String, sid: String, refs: List<UploadedImageRef>): List<UploadedImageRef> {
         val lock = locks.computeIfAbsent(uid) { Any() }
         synchronized(lock) {
             val current = list(uid, sid) ?: emptyList()
-            val next = current + ref
+            val next = current + refs
             return put(uid, sid, next)
         }
     }
@@ -0,0 +1,144 @@
+package coralsum.infrastructure.cache
+
+import cn.hutool.crypto.digest.DigestUtil
+import coralsum.config.UpscaylConfig
+import coralsum.toolkit.logger
+import io.micronaut.serde.annotation.Serdeable
+import jakarta.annotation.PostConstruct
+import jakarta.inject.Singleton
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.io.path.exists
+import kotlin.io.path.fileSize
+import kotlin.io.path.getLastModifiedTime
+import kotlin.io.path.isRegularFile
+import kotlin.io.path.name
+
+/**
+ * 放大结果的内容寻址缓存：以 SHA-256(源图字节) + 模型 + 倍数 + 格式 为键，
+ * 文件落在磁盘目录中，堆内仅保存 键 → 字节数 的 LRU 索引，按总字节数淘汰。
+ */
+@Singleton
+class UpscaleResultCache(
+    private val config: UpscaylConfig,
+) {
+
+    private val log = logger<UpscaleResultCache>()
+
+    private val dir: Path = config.cacheDir?.takeIf { it.isNotBlank() }?.let { Paths.get(it) }
+        ?: Paths.get(System.getProperty("store.base") ?: System.getProperty("user.dir"), "store", "upscale-cache")
+
+    private val index = LinkedHashMap<String, Long>(256, 0.75f, true)
+    private var totalBytes = 0L
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val evictions = AtomicLong()
+
+    @PostConstruct
+    fun init() {
+        if (!config.cacheEnabled) return
+        Files.createDirectories(dir)
+        // 按修改时间重建索引，最早的排在最前，优先被淘汰
+        Files.list(dir).use { stream ->
+            stream.filter { it.isRegularFile() && !it.name.endsWith(".tmp") }
+                .sorted(compareBy<Path> { it.getLastModifiedTime() })
+                .forEach { file ->
+                    val size = file.fileSize()
+                    index[file.name] = size
+                    totalBytes += size
+                }
+        }
+        synchronized(index) { evict() }
+    }
+
+    fun key(source: ByteArray, model: String, scale: Int, format: String): String {
+        return "${DigestUtil.sha256Hex(source)}-$model-x$scale.$format"
+    }
+
+    /**
+     * 命中时把缓存文件链接（或复制）到 target 并返回 true；同时刷新文件修改时间，重启后按修改时间重建的索引仍是 LRU 顺序
+     */
+    fun get(key: String, target: Path): Boolean {
+        if (!config.cacheEnabled) return false
+        val present = synchronized(index) { index[key] != null }
+        if (!present) {
+            misses.incrementAndGet()
+            return false
+        }
+        return try {
+            val file = dir.resolve(key)
+            try {
+                Files.createLink(target, file)
+            } catch (_: Exception) {
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING)
+            }
+            runCatching { Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())) }
+            hits.incrementAndGet()
+            true
+        } catch (e: Exception) {
+            // 文件可能刚被淘汰或被外部删除，按未命中处理
+            synchronized(index) { index.remove(key)?.let { totalBytes -= it } }
+            misses.incrementAndGet()
+            false
+        }
+    }
+
+    fun put(key: String, source: Path) {
+        if (!config.cacheEnabled || !source.exists()) return
+        try {
+            val size = source.fileSize()
+            if (size > config.cacheMaxBytes) return
+            val tmp = dir.resolve("$key.${System.nanoTime()}.tmp")
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING)
+            Files.move(tmp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            synchronized(index) {
+                index.put(key, size)?.let { totalBytes -= it }
+                totalBytes += size
+                evict()
+            }
+        } catch (e: Exception) {
+            log.warn("failed to cache upscale result {}: {}", key, e.message)
+        }
+    }
+
+    /**
+     * 须在持有 index 锁时调用
+     */
+    private fun evict() {
+        val it = index.entries.iterator()
+        while (totalBytes > config.cacheMaxBytes && it.hasNext()) {
+            val (key, size) = it.next()
+            it.remove()
+            totalBytes -= size
+            evictions.incrementAndGet()
+            runCatching { Files.deleteIfExists(dir.resolve(key)) }
+        }
+    }
+
+    fun stats(): UpscaleCacheStats {
+        val (entries, bytes) = synchronized(index) { index.size to totalBytes }
+        return UpscaleCacheStats(
+            entries = entries,
+            bytes = bytes,
+            maxBytes = config.cacheMaxBytes,
+            hits = hits.get(),
+            misses = misses.get(),
+            evictions = evictions.get(),
+        )
+    }
+}
+
+@Serdeable
+data class UpscaleCacheStats(
+    val entries: Int,
+    val bytes: Long,
+    val maxBytes: Long,
+    val hits: Long,
+    val misses: Long,
+    val evictions: Long,
+)
@@ -0,0 +1,37 @@
+package coralsum.infrastructure.entity
+
+import io.micronaut.data.annotation.DateCreated
+import io.micronaut.data.annotation.GeneratedValue
+import io.micronaut.data.annotation.Id
+import io.micronaut.data.annotation.MappedEntity
+import io.micronaut.data.model.naming.NamingStrategies
+import java.time.LocalDateTime
+
+@MappedEntity(
+    value = "gemini_file",
+    namingStrategy = NamingStrategies.UnderScoreSeparatedLowerCase::class
+)
+data class GeminiFile(
+    @field:Id
+    @field:GeneratedValue(GeneratedValue.Type.AUTO)
+    var id: Long? = null,
+
+    var contentHash: String,
+
+    var keyId: String,
+
+    var fileRef: String,
+
+    var fileUri: String,
+
+    var mimeType: String,
+
+    var sizeBytes: Int = 0,
+
+    var expireTime: LocalDateTime,
+
+    var lastUsedTime: LocalDateTime,
+
+    @field:DateCreated
+    var createTime: LocalDateTime? = null,
+)
@@ -34,6 +34,10 @@ data class GenerateImageReqRecord(
 
     var outputTokens: Int = 0,
 
+    var hedgeCount: Int = 0,
+
+    var hedgeInputTokens: Int = 0,
+
     var durationMs: Long = 0,
 
     @field:DateCreated
@@ -57,6 +61,8 @@ data class GenerateImageReqRecord(
         if (inputTokens != other.inputTokens) return false
         if (thoughtsTokens != other.thoughtsTokens) return false
         if (outputTokens != other.outputTokens) return false
+        if (hedgeCount != other.hedgeCount) return false
+        if (hedgeInputTokens != other.hedgeInputTokens) return false
         if (durationMs != other.durationMs) return false
         if (userCode != other.userCode) return false
         if (requestText != other.requestText) return false
@@ -76,6 +82,8 @@ data class GenerateImageReqRecord(
         result = 31 * result + inputTokens
         result = 31 * result + thoughtsTokens
         result = 31 * result + outputTokens
+        result = 31 * result + hedgeCount
+        result = 31 * result + hedgeInputTokens
         result = 31 * result + durationMs.hashCode()
         result = 31 * result + (userCode?.hashCode() ?: 0)
         result = 31 * result + (requestText?.hashCode() ?: 0)
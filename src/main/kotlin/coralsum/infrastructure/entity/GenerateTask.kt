@@ -0,0 +1,46 @@
+package coralsum.infrastructure.entity
+
+import coralsum.common.enums.GenTaskStatue
+import coralsum.common.enums.GenTaskType
+import io.micronaut.data.annotation.*
+import io.micronaut.data.model.DataType
+import io.micronaut.data.model.naming.NamingStrategies
+import java.time.LocalDateTime
+
+@MappedEntity(
+    value = "generate_task",
+    namingStrategy = NamingStrategies.UnderScoreSeparatedLowerCase::class
+)
+data class GenerateTask(
+    @field:Id
+    @field:GeneratedValue(GeneratedValue.Type.AUTO)
+    var id: Long? = null,
+
+    var sid: String,
+
+    var uid: String,
+
+    var taskType: GenTaskType,
+
+    var status: GenTaskStatue,
+
+    @field:TypeDef(type = DataType.JSON)
+    var payload: String? = null,
+
+    @field:TypeDef(type = DataType.JSON)
+    var result: String? = null,
+
+    var errorMessage: String? = null,
+
+    var attempts: Int = 0,
+
+    var startTime: LocalDateTime? = null,
+
+    var finishTime: LocalDateTime? = null,
+
+    @field:DateCreated
+    var createTime: LocalDateTime? = null,
+
+    @field:DateUpdated
+    var updateTime: LocalDateTime? = null,
+)
@@ -0,0 +1,28 @@
+package coralsum.infrastructure.repository
+
+import coralsum.infrastructure.entity.GeminiFile
+import io.micronaut.data.annotation.Query
+import io.micronaut.data.model.Pageable
+import io.micronaut.data.model.query.builder.sql.Dialect
+import io.micronaut.data.r2dbc.annotation.R2dbcRepository
+import io.micronaut.data.repository.kotlin.CoroutineCrudRepository
+import java.time.LocalDateTime
+
+@R2dbcRepository(dialect = Dialect.H2)
+interface GeminiFileRepository : CoroutineCrudRepository<GeminiFile, Long> {
+    suspend fun findAllByContentHashAndExpireTimeAfter(contentHash: String, time: LocalDateTime): List<GeminiFile>
+
+    suspend fun findAllByExpireTimeBeforeOrLastUsedTimeBefore(
+        expireBefore: LocalDateTime,
+        lastUsedBefore: LocalDateTime,
+        pageable: Pageable,
+    ): List<GeminiFile>
+
+    suspend fun deleteByIdIn(ids: List<Long>): Long
+
+    @Query("UPDATE gemini_file SET last_used_time = :time WHERE id = :id")
+    suspend fun touch(id: Long, time: LocalDateTime)
+
+    @Query("UPDATE gemini_file SET last_used_time = :time WHERE file_ref IN (:fileRefs)")
+    suspend fun touchByFileRefIn(fileRefs: List<String>, time: LocalDateTime)
+}
@@ -0,0 +1,15 @@
+package coralsum.infrastructure.repository
+
+import coralsum.common.enums.GenTaskStatue
+import coralsum.infrastructure.entity.GenerateTask
+import io.micronaut.data.model.query.builder.sql.Dialect
+import io.micronaut.data.r2dbc.annotation.R2dbcRepository
+import io.micronaut.data.repository.kotlin.CoroutineCrudRepository
+import java.time.LocalDateTime
+
+@R2dbcRepository(dialect = Dialect.H2)
+interface GenerateTaskRepository : CoroutineCrudRepository<GenerateTask, Long> {
+    suspend fun findAllByUidAndSid(uid: String, sid: String): List<GenerateTask>
+    suspend fun findAllByStatusInOrderByIdAsc(statuses: List<GenTaskStatue>): List<GenerateTask>
+    suspend fun deleteByStatusInAndFinishTimeBefore(statuses: List<GenTaskStatue>, cutoff: LocalDateTime): Long
+}
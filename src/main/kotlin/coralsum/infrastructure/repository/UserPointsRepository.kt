@@ -1,5 +1,6 @@
 package coralsum.infrastructure.repository
 
+import coralsum.common.enums.MembershipTier
 import coralsum.infrastructure.entity.UserPoints
 import io.micronaut.data.annotation.Join
 import io.micronaut.data.model.query.builder.sql.Dialect
@@ -10,4 +11,6 @@ import io.micronaut.data.repository.kotlin.CoroutineCrudRepository
 interface UserPointsRepository : CoroutineCrudRepository<UserPoints, Long> {
     @Join(value = "openUser")
     suspend fun findByOpenUserId(openUserId: Long): UserPoints?
+
+    suspend fun findTierByOpenUserId(openUserId: Long): MembershipTier?
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package coralsum.job
+
+import coralsum.service.impl.GenerativeImageImpl
+import jakarta.inject.Singleton
+import kotlinx.coroutines.runBlocking
+import org.jobrunr.jobs.annotations.Job
+import org.jobrunr.jobs.annotations.Recurring
+
+@Singleton
+class GeminiFileCleanupJob(
+    private val generativeImage: GenerativeImageImpl,
+) {
+
+    @Recurring(id = "gemini-file-cleanup", interval = "PT10M")
+    @Job(name = "清理闲置的 Gemini 参考图片文件")
+    fun cleanup() {
+        runBlocking { generativeImage.reapUploadedFiles() }
+    }
+
+}
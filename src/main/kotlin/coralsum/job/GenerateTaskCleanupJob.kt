@@ -0,0 +1,34 @@
+package coralsum.job
+
+import coralsum.common.enums.GenTaskStatue
+import coralsum.config.GenerateTaskConfig
+import coralsum.infrastructure.repository.GenerateTaskRepository
+import coralsum.toolkit.logger
+import jakarta.inject.Singleton
+import kotlinx.coroutines.runBlocking
+import org.jobrunr.jobs.annotations.Job
+import org.jobrunr.jobs.annotations.Recurring
+import java.time.LocalDateTime
+
+@Singleton
+class GenerateTaskCleanupJob(
+    private val config: GenerateTaskConfig,
+    private val generateTaskRepository: GenerateTaskRepository,
+) {
+
+    private val log = logger<GenerateTaskCleanupJob>()
+
+    @Recurring(id = "generate-task-cleanup", interval = "PT1H")
+    @Job(name = "清理已结束的生成任务")
+    fun cleanup() {
+        val cutoff = LocalDateTime.now().minusDays(config.retentionDays)
+        val deleted = runBlocking {
+            generateTaskRepository.deleteByStatusInAndFinishTimeBefore(
+                listOf(GenTaskStatue.COMPLETED, GenTaskStatue.FAILED),
+                cutoff
+            )
+        }
+        if (deleted > 0) log.info("清理生成任务 {} 条", deleted)
+    }
+
+}
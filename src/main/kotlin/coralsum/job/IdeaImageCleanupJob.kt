@@ -0,0 +1,20 @@
+package coralsum.job
+
+import coralsum.service.impl.IdeaServiceImpl
+import jakarta.inject.Singleton
+import kotlinx.coroutines.runBlocking
+import org.jobrunr.jobs.annotations.Job
+import org.jobrunr.jobs.annotations.Recurring
+
+@Singleton
+class IdeaImageCleanupJob(
+    private val ideaService: IdeaServiceImpl,
+) {
+
+    @Recurring(id = "idea-image-cleanup", interval = "PT6H")
+    @Job(name = "清理未登记到模版的图片对象")
+    fun cleanup() {
+        runBlocking { ideaService.sweepOrphanImages() }
+    }
+
+}
@@ -1,10 +1,12 @@
 package coralsum.service
 
+import com.fasterxml.jackson.annotation.JsonIgnore
 import coralsum.common.enums.*
 import io.micronaut.http.HttpRequest
 import io.micronaut.serde.annotation.Serdeable
 import io.swagger.v3.oas.annotations.media.Schema
 import jakarta.validation.constraints.Size
+import kotlinx.coroutines.flow.Flow
 import java.io.Serializable
 
 interface IGenerativeImage {
@@ -19,6 +21,18 @@ interface IGenerativeImage {
 
     suspend fun getGenerateTaskResult(sid: String): GenTaskResult
 
+    /**
+     * 长轮询：任务未结束时挂起至多 waitSeconds 秒，直到状态发生变化
+     */
+    suspend fun awaitGenerateTaskResult(sid: String, waitSeconds: Int): GenTaskResult
+
+    /**
+     * 任务事件流：先推送当前状态，之后推送状态流转与候选完成，任务结束后关闭
+     */
+    fun taskEvents(sid: String): Flow<GenTaskEvent>
+
+    suspend fun submitUpscaleTask(ref: String, upscaylModel: UpscaylModel, upscaylScale: UpscaylScale): String?
+
     suspend fun linkPage(ref: String): LinkPage?
 
 }
@@ -83,6 +97,13 @@ data class GenRequest(
 
 }
 
+@Serdeable
+data class UpscaleRequest(
+    val ref: String,
+    val upscaylModel: UpscaylModel,
+    val upscaylScale: UpscaylScale,
+)
+
 @Serdeable
 @Schema(description = "生成结果")
 data class GenResult(
@@ -113,4 +134,23 @@ data class IntentAssessment(
 data class GenTaskResult(
     @field:Schema(description = "任务状态") val status: GenTaskStatue,
     @field:Schema(description = "生成结果") val result: GenResult? = null,
+    @field:Schema(description = "排队位置，0 表示下一个执行") val queuePosition: Int? = null,
+    @field:Schema(description = "预计完成秒数") val etaSeconds: Long? = null,
 )
+
+@Serdeable
+@Schema(description = "生成任务事件")
+data class GenTaskEvent(
+    @field:Schema(description = "任务ID") val sid: String,
+    @field:Schema(description = "任务状态") val status: GenTaskStatue,
+    @field:Schema(description = "完成的候选序号") val candidateIndex: Int? = null,
+    @field:Schema(description = "完成的候选图片链接") val image: String? = null,
+    @field:Schema(description = "为 true 时表示任务失败，此前推送的该候选图片已撤回") val retracted: Boolean? = null,
+    @field:Schema(description = "生成结果") val result: GenResult? = null,
+    @field:Schema(description = "排队位置，0 表示下一个执行") val queuePosition: Int? = null,
+    @field:Schema(description = "预计完成秒数") val etaSeconds: Long? = null,
+) {
+    @get:JsonIgnore
+    val terminal: Boolean
+        get() = candidateIndex == null && status != GenTaskStatue.QUEUED && status != GenTaskStatue.PROCESSING
+}
@@ -1,5 +1,6 @@
 package coralsum.service
 
+import coralsum.common.enums.IdeaImageSlot
 import io.micronaut.http.multipart.StreamingFileUpload
 import coralsum.infrastructure.entity.IdeaCategory
 import coralsum.infrastructure.entity.IdeaTag
@@ -65,6 +66,9 @@ interface IIdeaService {
     suspend fun uploadOriginalImage(templateId: Long, file: StreamingFileUpload): String?
     suspend fun uploadEffectImage(templateId: Long, file: StreamingFileUpload): String?
 
+    suspend fun presignImageUpload(templateId: Long, slot: IdeaImageSlot, contentType: String, size: Long): PresignedUpload
+    suspend fun completeImageUpload(templateId: Long, slot: IdeaImageSlot, key: String): String?
+
     suspend fun deleteOriginalImage(templateId: Long, key: String): Boolean
     suspend fun deleteEffectImage(templateId: Long): Boolean
 
@@ -73,6 +77,19 @@ interface IIdeaService {
     suspend fun markTemplateUsed(id: Long): Boolean
 }
 
+/**
+ * 直传对象存储的预签名上传：客户端以 method 和 headers 将文件 PUT 到 url，完成后回调登记 key
+ */
+@Serdeable
+data class PresignedUpload(
+    val key: String,
+    val url: String,
+    val method: String,
+    val headers: Map<String, String>,
+    val maxBytes: Long,
+    val expiresAt: Long,
+)
+
 @Serdeable
 data class CategoryNode(
     val id: Long,
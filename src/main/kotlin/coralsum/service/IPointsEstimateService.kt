@@ -2,7 +2,13 @@ package coralsum.service
 
 import coralsum.common.request.EstimatePointsReq
 import coralsum.common.response.EstimatePointsResp
+import java.math.BigDecimal
 
 interface IPointsEstimateService {
     suspend fun estimate(req: EstimatePointsReq): EstimatePointsResp
+
+    /**
+     * 单独放大已有图片的计算成本（RMB），不含流量
+     */
+    fun upscaleRmb(scale: Int, images: Int): BigDecimal
 }
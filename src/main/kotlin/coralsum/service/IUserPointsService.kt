@@ -1,11 +1,17 @@
 package coralsum.service
 
+import coralsum.common.enums.MembershipTier
 import coralsum.common.enums.SubscribeType
 import coralsum.infrastructure.entity.UserPoints
 
 interface IUserPointsService {
     suspend fun getOrCreateByOpenUserId(openUserId: Long): UserPoints
 
+    /**
+     * 只读查询会员等级，无积分记录时视为免费用户
+     */
+    suspend fun findTier(openUserId: Long): MembershipTier
+
     suspend fun addPermanentPoints(openUserId: Long, delta: Int): UserPoints
 
     suspend fun addSubscribePoints(openUserId: Long, delta: Int): UserPoints
@@ -1,5 +1,6 @@
 package coralsum.service.impl
 
+import cn.hutool.crypto.digest.DigestUtil
 import cn.hutool.crypto.digest.HMac
 import cn.hutool.crypto.digest.HmacAlgorithm
 import com.aliyun.oss.HttpMethod
@@ -7,22 +8,50 @@ import com.aliyun.oss.OSS
 import com.aliyun.oss.model.GeneratePresignedUrlRequest
 import com.aliyun.oss.model.ObjectMetadata
 import coralsum.common.enums.GenTaskStatue
+import coralsum.common.enums.GenTaskType
+import coralsum.common.enums.ImageFormat
 import coralsum.common.enums.ImageSize
 import coralsum.common.enums.MediaResolution
+import coralsum.common.enums.MembershipTier
 import coralsum.common.enums.ModelType
+import coralsum.common.enums.UpscaylModel
+import coralsum.common.enums.UpscaylScale
 import coralsum.common.event.GenerativeImageCostEvent
 import coralsum.common.request.EstimatePointsReq
+import coralsum.common.response.UploadBatchResponse
+import coralsum.common.response.UploadFileResult
+import coralsum.component.concurrent.Bulkheads
+import coralsum.component.concurrent.FairShareScheduler
+import coralsum.component.concurrent.GenerationExecutor
+import coralsum.component.concurrent.PostProcessStages
+import coralsum.component.concurrent.ScheduleOwner
 import coralsum.component.excption.BusinessException
+import coralsum.component.image.ImageIngest
+import coralsum.component.image.ImageKind
+import coralsum.component.image.IngestedImage
+import coralsum.component.image.ImageMemoryGovernor
+import coralsum.component.image.ReferenceImageScaler
+import coralsum.component.models.GeminiKeyPool
+import coralsum.component.models.HedgingPolicy
+import coralsum.component.models.ModelCallGovernor
 import coralsum.component.models.NanoBanana
-import coralsum.component.models.Upscayl
+import coralsum.component.models.UpscaylBatchScheduler
+import coralsum.component.models.UpscaylJob
+import coralsum.component.task.GenerateTaskEvents
+import coralsum.component.task.GenerateTaskHandler
+import coralsum.component.task.GenerateTaskQueue
+import coralsum.config.GeminiFileConfig
 import coralsum.config.GoogleConfig
+import coralsum.config.ImageIngestConfig
 import coralsum.config.OssConfig
 import coralsum.config.PreviewConfig
-import coralsum.infrastructure.cache.GenerateTaskCache
+import coralsum.infrastructure.cache.GeminiFileRegistry
+import coralsum.infrastructure.cache.UpscaleResultCache
 import coralsum.infrastructure.cache.UploadedImageCache
 import coralsum.infrastructure.cache.UploadedImageRef
 import coralsum.infrastructure.entity.GenerateImageReqRecord
 import coralsum.infrastructure.entity.GenerateImageReqRef
+import coralsum.infrastructure.entity.GenerateTask
 import coralsum.infrastructure.entity.RetrievalImageReqRecord
 import coralsum.infrastructure.repository.*
 import coralsum.service.*
@@ -38,35 +67,36 @@ import dev.langchain4j.model.chat.request.ResponseFormatType
 import dev.langchain4j.model.chat.request.json.JsonObjectSchema
 import dev.langchain4j.model.chat.request.json.JsonSchema
 import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel
-import io.github.resilience4j.micronaut.annotation.RateLimiter
 import io.micronaut.context.event.ApplicationEventPublisher
 import io.micronaut.http.HttpRequest
 import io.micronaut.http.multipart.StreamingFileUpload
 import io.micronaut.json.JsonMapper
 import io.micronaut.json.tree.JsonNode
-import io.micronaut.retry.annotation.Retryable
 import io.micronaut.security.utils.SecurityService
 import jakarta.annotation.PostConstruct
 import jakarta.annotation.PreDestroy
 import jakarta.inject.Singleton
 import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.transformWhile
+import kotlinx.coroutines.reactive.asFlow
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import okio.FileSystem
 import okio.Path
 import okio.Path.Companion.toPath
-import org.apache.commons.lang3.concurrent.BasicThreadFactory
 import org.apache.commons.lang3.time.StopWatch
+import org.reactivestreams.Publisher
 import java.awt.image.BufferedImage
 import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
 import java.net.InetSocketAddress
 import java.net.ProxySelector
 import java.net.http.HttpClient
 import java.util.*
-import java.util.concurrent.ArrayBlockingQueue
-import java.util.concurrent.CompletableFuture
-import java.util.concurrent.ThreadPoolExecutor
-import java.util.concurrent.TimeUnit
 import javax.imageio.ImageIO
-import kotlin.io.path.Path
 import kotlin.io.path.createTempDirectory
 import kotlin.jvm.optionals.getOrElse
 import kotlin.time.Duration.Companion.seconds
@@ -80,7 +110,8 @@ class GenerativeImageImpl(
     val generateImageReqRecordRepository: GenerateImageReqRecordRepository,
     val generateImageReqRefRepository: GenerateImageReqRefRepository,
     val retrievalImageReqRecordRepository: RetrievalImageReqRecordRepository,
-    val generateTaskCache: GenerateTaskCache,
+    val generateTaskQueue: GenerateTaskQueue,
+    val generateTaskEvents: GenerateTaskEvents,
     val applicationEventPublisher: ApplicationEventPublisher<GenerativeImageCostEvent>,
     val userPointsService: IUserPointsService,
     val openUserRepository: OpenUserRepository,
@@ -89,12 +120,25 @@ class GenerativeImageImpl(
     val uploadedImageCache: UploadedImageCache,
     val ossConfig: OssConfig,
     val oss: OSS,
-) : IGenerativeImage {
+    val upscaylBatchScheduler: UpscaylBatchScheduler,
+    val upscaleResultCache: UpscaleResultCache,
+    val imageMemoryGovernor: ImageMemoryGovernor,
+    val generationExecutor: GenerationExecutor,
+    val bulkheads: Bulkheads,
+    val postProcessStages: PostProcessStages,
+    val fairShareScheduler: FairShareScheduler,
+    val modelCallGovernor: ModelCallGovernor,
+    val geminiKeyPool: GeminiKeyPool,
+    val hedgingPolicy: HedgingPolicy,
+    val geminiFileRegistry: GeminiFileRegistry,
+    val geminiFileConfig: GeminiFileConfig,
+    val referenceImageScaler: ReferenceImageScaler,
+    val imageIngest: ImageIngest,
+    val imageIngestConfig: ImageIngestConfig,
+) : IGenerativeImage, GenerateTaskHandler {
 
     private lateinit var nano: NanoBanana
 
-    private lateinit var upscayl: Upscayl
-
     private lateinit var gemini: ChatModel
 
 
@@ -102,26 +146,14 @@ class GenerativeImageImpl(
         @JvmStatic
         private val log = logger<IGenerativeImage>()
 
-        @JvmStatic
-        private val executor = ThreadPoolExecutor(
-            60, 60,
-            0L, TimeUnit.MILLISECONDS,
-            ArrayBlockingQueue(1000),
-            BasicThreadFactory.builder()
-                .namingPattern("image-generator-%d")
-                .build()
-        )
-
-        private val scope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+        // Gemini 参考图片支持的格式
+        private val REFERENCE_KINDS = setOf(ImageKind.PNG, ImageKind.JPEG, ImageKind.WEBP)
 
     }
 
     @PostConstruct
     fun init() {
-        nano = NanoBanana(googleConfig.geminiApiKey)
-        val userDir = System.getProperty("user.dir")
-        val executable = resolveUpscaylExecutable(userDir)
-        upscayl = Upscayl(executable)
+        nano = NanoBanana(geminiKeyPool, googleConfig.httpSettings())
 
         gemini = GoogleAiGeminiChatModel.builder()
             .apiKey(googleConfig.geminiApiKey)
@@ -150,16 +182,45 @@ class GenerativeImageImpl(
 
     @PreDestroy
     fun destroy() {
+        // 先等待执行中的异步任务结束，再关闭模型客户端
+        generateTaskQueue.close()
         nano.close()
     }
 
     override suspend fun generate(genRequest: GenRequest, request: HttpRequest<*>): GenResult {
         val uid = securityService.authentication.get().name
         validPoint(uid, genRequest)
+        return generate(uid, genRequest)
+    }
+
+    override suspend fun handle(task: GenerateTask): GenResult {
+        return when (task.taskType) {
+            GenTaskType.GENERATE -> generate(task.uid, generateTaskQueue.payload(task, GenRequest::class.java))
+            GenTaskType.UPSCALE -> {
+                val req = generateTaskQueue.payload(task, UpscaleRequest::class.java)
+                val imageRef = generateImageReqRefRepository.findByImageRef(req.ref)
+                    ?: throw BusinessException("图片不存在")
+                upscaleExisting(task.uid, imageRef, formatOfRef(req.ref), req.upscaylModel, req.upscaylScale)
+            }
+        }
+    }
+
+    override suspend fun tierOf(uid: String): MembershipTier {
+        val openUser = openUserRepository.findByUid(uid) ?: return MembershipTier.FREE
+        return userPointsService.findTier(openUser.id!!)
+    }
+
+    /**
+     * 以显式 uid 执行生成，供同步接口与异步任务 worker 共用；
+     * 请求中已固化参考图（imageUrls）时不再读取上传会话缓存
+     */
+    private suspend fun generate(uid: String, genRequest: GenRequest): GenResult {
         val watch = StopWatch.createStarted()
         val sid = genRequest.imageSessionId
-        val cachedRefs = if (sid != null) uploadedImageCache.list(uid, sid) ?: emptyList() else emptyList()
-        val finalRefs: List<String> = cachedRefs.map { r -> r.uri }
+        val finalRefs: List<String> = genRequest.imageUrls ?: run {
+            val cachedRefs = if (sid != null) uploadedImageCache.list(uid, sid) ?: emptyList() else emptyList()
+            cachedRefs.map { r -> r.uri }
+        }
         val effectiveReq = genRequest.copy(text = genRequest.text, imageUrls = finalRefs)
         val conf = jsonMapper.writeValueAsString(effectiveReq.copy(text = null, imageUrls = null))
         val imageReqRecord = GenerateImageReqRecord(
@@ -168,69 +229,24 @@ class GenerativeImageImpl(
             requestConfig = conf,
             userCode = uid,
         )
+        val owner = ScheduleOwner(uid, tierOf(uid))
         val genResult = withContext(Dispatchers.IO) {
             val fs = FileSystem.SYSTEM
             val tempDir = createTempDirectory("coralsum-").toAbsolutePath().toString().toPath()
             val refs = mutableListOf<String>()
             val sizes = mutableListOf<Int>()
             try {
-                val pairs = doConcurrentGenerate(effectiveReq, imageReqRecord, uid)
-                val images = pairs.mapIndexed { index, pair ->
-                    val (_, bufferedImage) = pair
-
-                    if (bufferedImage == null) {
-                        return@mapIndexed null
-                    }
-
-                    val imagePath = tempDir / "image-$index.${genRequest.format.ext}"
-                    ImageIO.write(bufferedImage, genRequest.format.ext, imagePath.toFile())
-
-                    var targetPath: Path
-                    val upscaylModel = genRequest.upscaylModel
-                    val upscaylScale = genRequest.upscaylScale
-                    if (upscaylModel != null && upscaylScale != null && upscaylScale.scale > 1) {
-                        val upscaledPath = tempDir / "image-upscayl-$index.${genRequest.format.ext}"
-                        try {
-                            upscayl.input(imagePath.toString())
-                                .output(upscaledPath.toString())
-                                .model(upscaylModel.modelName)
-                                .scale(upscaylScale.scale)
-                                .format(genRequest.format.ext)
-                                .run()
-                            targetPath = if (upscaledPath.toFile().exists()) upscaledPath else imagePath
-                            if (targetPath == imagePath) {
-                                log.warn("upscayl failed, fallback to original")
-                            }
-                        } catch (e: Exception) {
-                            log.warn("upscayl failed: ${e.message}")
-                            targetPath = imagePath
-                        }
-                    } else {
-                        targetPath = imagePath
-                    }
-
-                    val key = "${tempDir.name}-${index}.${genRequest.format.ext}"
-                    refs.add(key)
-
-                    val bytes = fs.read(targetPath) { readByteArray() }
-
-                    sizes.add(bytes.size)
-
-                    val metadata = ObjectMetadata()
-                    metadata.contentDisposition = "attachment; filename=aigi.${genRequest.format.ext}"
-                    metadata.contentType = when (genRequest.format.ext.lowercase()) {
-                        "png" -> "image/png"
-                        "jpg", "jpeg" -> "image/jpeg"
-                        "webp" -> "image/webp"
-                        else -> "application/octet-stream"
-                    }
-                    oss.putObject(resolveBucket(), key, ByteArrayInputStream(bytes), metadata)
-                    "/api/generative-image?ref=${key}"
+                val outputs = doConcurrentGenerate(effectiveReq, imageReqRecord, owner, tempDir)
+                for (output in outputs) {
+                    if (output.key == null) continue
+                    refs.add(output.key)
+                    sizes.add(output.size)
                 }
+                val images = outputs.map { output -> output.key?.let { "/api/generative-image?ref=$it" } }
                 watch.stop()
                 imageReqRecord.durationMs = watch.duration.toMillis()
 
-                val text = pairs.map { it.first }.firstOrNull { !it.isNullOrBlank() } ?: ""
+                val text = outputs.map { it.text }.firstOrNull { !it.isNullOrBlank() } ?: ""
                 val linkImages = refs.map { "/api/generative-image/link?ref=$it" }
                 GenResult(
                     inputTokens = imageReqRecord.inputTokens,
@@ -252,7 +268,7 @@ class GenerativeImageImpl(
                         )
                     )
                 }
-                applicationEventPublisher.publishEvent(
+                publishCost(
                     GenerativeImageCostEvent(
                         uid = imageReqRecord.userCode!!,
                         recordId = recordId,
@@ -268,25 +284,36 @@ class GenerativeImageImpl(
                         timestampMs = System.currentTimeMillis(),
                         success = refs.isNotEmpty(),
                         upscaylScale = genRequest.upscaylScale?.scale ?: 1,
-                        modelType = genRequest.modelType ?: ModelType.BASIC
+                        modelType = genRequest.modelType ?: ModelType.BASIC,
+                        hedgeCount = imageReqRecord.hedgeCount,
+                        hedgeInputTokens = imageReqRecord.hedgeInputTokens,
                     )
                 )
-                try {
-                    fs.list(tempDir).forEach { fs.delete(it) }
-                    fs.delete(tempDir)
-                } catch (e: Exception) {
-                    log.warn("failed to clean temp directory: ${e.message}")
-                }
-                try {
-                    finalRefs.forEach { r -> nano.delete(r) }
-                } catch (_: Exception) {
-                }
+                cleanTempDir(tempDir)
+                // 参考图片留待复用，闲置后由 GeminiFileCleanupJob 分批删除
                 if (sid != null) uploadedImageCache.clear(uid, sid)
             }
         }
         return genResult
     }
 
+    /**
+     * 扣费监听器为同步执行且内部阻塞访问数据库，放到 db 舱壁中发布
+     */
+    private suspend fun publishCost(event: GenerativeImageCostEvent) {
+        withContext(bulkheads.db) { applicationEventPublisher.publishEvent(event) }
+    }
+
+    private fun cleanTempDir(tempDir: Path) {
+        try {
+            val fs = FileSystem.SYSTEM
+            fs.list(tempDir).forEach { fs.delete(it) }
+            fs.delete(tempDir)
+        } catch (e: Exception) {
+            log.warn("failed to clean temp directory: ${e.message}")
+        }
+    }
+
     private suspend fun validPoint(uid: String, genRequest: GenRequest) {
         val openUser = openUserRepository.findByUid(uid)
         if (openUser == null) throw BusinessException("积分不足")
@@ -368,114 +395,727 @@ class GenerativeImageImpl(
         genRequest: GenRequest,
         request: HttpRequest<*>,
     ): String? {
-        var finalSid: String? = genRequest.imageSessionId
-        withContext(Dispatchers.IO) {
-            val uid = securityService.authentication.get().name
-            validPoint(uid, genRequest)
-            val sid = genRequest.imageSessionId ?: uploadedImageCache.createSession(uid)
-            generateTaskCache.cacheGenerateTaskStatue(uid, sid, GenTaskStatue.PROCESSING)
-            scope.launch(currentCoroutineContext().minusKey(Job).minusKey(CoroutineDispatcher)) {
-                try {
-                    val result = generate(genRequest, request)
-                    generateTaskCache.cacheGenerateTaskResult(uid, sid, result)
-                } catch (e: Exception) {
-                    log.error("生成失败: {}", e.message, e)
-                    generateTaskCache.cacheGenerateTaskStatue(uid, sid, GenTaskStatue.FAILED)
-                }
+        val uid = securityService.authentication.get().name
+        validPoint(uid, genRequest)
+        val sid = genRequest.imageSessionId ?: uploadedImageCache.createSession(uid)
+        // 上传会话缓存会过期，提交时即固化参考图，保证排队或重启后仍可执行
+        val refs = durableRefs(uploadedImageCache.list(uid, sid) ?: emptyList())
+        touchFiles(refs)
+        generateTaskQueue.submit(
+            uid,
+            sid,
+            GenTaskType.GENERATE,
+            genRequest.copy(imageSessionId = sid, imageUrls = refs)
+        )
+        return sid
+    }
+
+    override suspend fun submitUpscaleTask(
+        ref: String,
+        upscaylModel: UpscaylModel,
+        upscaylScale: UpscaylScale,
+    ): String? {
+        if (upscaylScale.scale <= 1) throw BusinessException("放大倍数须大于1")
+        val uid = securityService.authentication.get().name
+        val imageRef = generateImageReqRefRepository.findByImageRef(ref) ?: throw BusinessException("图片不存在")
+        val record = generateImageReqRecordRepository.findById(imageRef.recordId)
+        if (record == null || record.userCode != uid) throw BusinessException("图片不存在")
+        val format = formatOfRef(ref)
+        val openUser = openUserRepository.findByUid(uid) ?: throw BusinessException("积分不足")
+        val estimateReq = EstimatePointsReq(
+            candidateCount = 1,
+            imageSizeCategory = ImageSize.X1,
+            imageSizeBytes = imageRef.imageSize ?: 0,
+            imageFormat = format,
+            inputCharCount = 0,
+            timestampMs = System.currentTimeMillis(),
+            success = false,
+            upscaylScale = upscaylScale.scale,
+            modelType = ModelType.BASIC,
+            upscaleOnly = true,
+        )
+        if (!userPointsService.hasEnoughPoints(openUser.id!!, estimateReq)) {
+            throw BusinessException("积分不足")
+        }
+        val sid = UUID.randomUUID().toString()
+        generateTaskQueue.submit(uid, sid, GenTaskType.UPSCALE, UpscaleRequest(ref, upscaylModel, upscaylScale))
+        return sid
+    }
+
+    private fun formatOfRef(ref: String): ImageFormat {
+        return ImageFormat.entries.firstOrNull { it.ext == ref.substringAfterLast('.', "").lowercase() }
+            ?: ImageFormat.PNG
+    }
+
+    /**
+     * 从 OSS 取回已生成的图片，经放大流水线（缓存 → 合批调度）处理后作为新引用挂到同一条生成记录下，仅按放大部分计费
+     */
+    private suspend fun upscaleExisting(
+        uid: String,
+        imageRef: GenerateImageReqRef,
+        format: ImageFormat,
+        upscaylModel: UpscaylModel,
+        upscaylScale: UpscaylScale,
+    ): GenResult = withContext(Dispatchers.IO) {
+        val watch = StopWatch.createStarted()
+        val tempDir = createTempDirectory("coralsum-").toAbsolutePath().toString().toPath()
+        var key: String? = null
+        var size = 0
+        try {
+            val source = withContext(bulkheads.storage) {
+                oss.getObject(resolveBucket(), imageRef.imageRef).objectContent.use { it.readBytes() }
             }
-            finalSid = sid
+            val upscaled = upscale(0, source, upscaylModel, upscaylScale, format, tempDir, cached = true)
+                ?: throw BusinessException("放大失败")
+            val newKey = "${tempDir.name}-upscayl-x${upscaylScale.scale}.${format.ext}"
+            size = postProcessStages.upload.withPermit {
+                withContext(bulkheads.storage) { putImage(newKey, format, source, upscaled) }
+            }
+            key = newKey
+            watch.stop()
+            GenResult(
+                inputTokens = 0,
+                outputTokens = 0,
+                durationMs = watch.duration.toMillis().toInt(),
+                images = listOf("/api/generative-image?ref=$newKey"),
+                linkImages = listOf("/api/generative-image/link?ref=$newKey"),
+            )
+        } finally {
+            val newRef = key
+            if (newRef != null) {
+                generateImageReqRefRepository.save(
+                    GenerateImageReqRef(recordId = imageRef.recordId, imageRef = newRef, imageSize = size)
+                )
+            }
+            publishCost(
+                GenerativeImageCostEvent(
+                    uid = uid,
+                    recordId = imageRef.recordId,
+                    inputTokens = 0,
+                    thoughtsTokens = 0,
+                    outputTokens = 0,
+                    candidateCount = 1,
+                    imageCount = if (newRef != null) 1 else 0,
+                    imageSizeCategory = ImageSize.X1,
+                    imageSizeBytes = size,
+                    imageFormat = format,
+                    inputCharCount = 0,
+                    timestampMs = System.currentTimeMillis(),
+                    success = newRef != null,
+                    upscaylScale = upscaylScale.scale,
+                    modelType = ModelType.BASIC,
+                    upscaleOnly = true,
+                    imageRefs = listOfNotNull(newRef),
+                )
+            )
+            cleanTempDir(tempDir)
         }
-        return finalSid
     }
 
     override suspend fun getGenerateTaskResult(sid: String): GenTaskResult {
         val uid = securityService.authentication.get().name
-        val cacheGenerateTaskResult = generateTaskCache.getGenerateTaskResult(uid, sid)
-        val statue = generateTaskCache.getGenerateTaskStatue(uid, sid)
-        return if (cacheGenerateTaskResult != null) {
-            generateTaskCache.clearAll(uid, sid)
-            return GenTaskResult(
-                status = GenTaskStatue.COMPLETED,
-                result = cacheGenerateTaskResult
-            )
-        } else if (statue == null) {
-            GenTaskResult(
-                status = GenTaskStatue.NONE
-            )
-        } else {
-            GenTaskResult(
-                status = statue
+        return taskResult(uid, sid)
+    }
+
+    override suspend fun awaitGenerateTaskResult(sid: String, waitSeconds: Int): GenTaskResult {
+        val uid = securityService.authentication.get().name
+        val wait = waitSeconds.coerceIn(0, 30)
+        return coroutineScope {
+            // 先订阅再读快照，避免错过两者之间发生的状态变化
+            val changed = async(start = CoroutineStart.UNDISPATCHED) {
+                generateTaskEvents.subscribe(uid, sid).first { it.candidateIndex == null }
+            }
+            val current = taskResult(uid, sid)
+            if (wait == 0 || current.status !in setOf(GenTaskStatue.QUEUED, GenTaskStatue.PROCESSING)) {
+                changed.cancel()
+                return@coroutineScope current
+            }
+            val event = withTimeoutOrNull(wait.seconds) { changed.await() }
+            changed.cancel()
+            if (event == null || event.status == current.status) current else taskResult(uid, sid)
+        }
+    }
+
+    override fun taskEvents(sid: String): Flow<GenTaskEvent> {
+        val uid = securityService.authentication.get().name
+        return channelFlow {
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                generateTaskEvents.subscribe(uid, sid).collect { send(it) }
+            }
+            val current = taskResult(uid, sid)
+            send(
+                GenTaskEvent(
+                    sid = sid,
+                    status = current.status,
+                    result = current.result,
+                    queuePosition = current.queuePosition,
+                    etaSeconds = current.etaSeconds,
+                )
             )
+        }.transformWhile { event ->
+            emit(event)
+            !event.terminal
         }
     }
 
-    private fun doConcurrentGenerate(
+    private suspend fun taskResult(uid: String, sid: String): GenTaskResult {
+        val task = generateTaskQueue.find(uid, sid) ?: return GenTaskResult(status = GenTaskStatue.NONE)
+        // 排队中看任务槽位，执行中看尚未发出的候选在模型调用通道中的位置
+        val estimate = when (task.status) {
+            GenTaskStatue.QUEUED -> generateTaskQueue.estimate(task)
+            GenTaskStatue.PROCESSING -> fairShareScheduler.calls.estimate(sid)
+            else -> null
+        }
+        return GenTaskResult(
+            status = task.status,
+            result = if (task.status == GenTaskStatue.COMPLETED) generateTaskQueue.result(task) else null,
+            queuePosition = estimate?.position,
+            etaSeconds = estimate?.etaSeconds,
+        )
+    }
+
+    /**
+     * 每个候选在模型返回后立即进入 编码 → 放大(可选) → 上传 流水线，各阶段并发受限，最终按候选序号组装结果；
+     * 模型调用为挂起式异步请求，等待期间不占用线程，任一候选失败或调用方取消时其余请求的 HTTP 调用随之取消；
+     * 各候选按用户与会员层级在公平调度器中排队，避免单个用户的大批量请求拖慢其他用户
+     */
+    private suspend fun doConcurrentGenerate(
         genRequest: GenRequest,
         imageReqRecord: GenerateImageReqRecord,
-        uid: String,
-    ): List<Pair<String?, BufferedImage?>> {
-        val futures = (0 until genRequest.candidateCount).map {
-            CompletableFuture.supplyAsync({ doGenerate(genRequest, imageReqRecord, uid) }, executor)
-        }.toList()
-        CompletableFuture.allOf(*futures.toTypedArray()).get()
-        return futures.map { it.get() }
+        owner: ScheduleOwner,
+        tempDir: Path,
+    ): List<CandidateOutput> {
+        val uid = owner.uid
+        val files = resolveReferenceFiles(uid, genRequest)
+        val uploaded = Collections.synchronizedList(mutableListOf<String>())
+        val published = Collections.synchronizedList(mutableListOf<Int>())
+        try {
+            return coroutineScope {
+                (0 until genRequest.candidateCount).map { index ->
+                    async {
+                        val (text, generated) = generationExecutor.withLimit(owner, genRequest.imageSessionId) {
+                            doGenerate(genRequest, imageReqRecord, files)
+                        }
+                        if (generated == null) {
+                            CandidateOutput(text, null, 0)
+                        } else {
+                            val (key, size) = postProcess(index, generated, genRequest, tempDir, uploaded)
+                            genRequest.imageSessionId?.let { sid ->
+                                generateTaskEvents.publish(
+                                    uid,
+                                    GenTaskEvent(
+                                        sid = sid,
+                                        status = GenTaskStatue.PROCESSING,
+                                        candidateIndex = index,
+                                        image = "/api/generative-image?ref=$key"
+                                    )
+                                )
+                                published.add(index)
+                            }
+                            CandidateOutput(text, key, size)
+                        }
+                    }
+                }.awaitAll()
+            }
+        } catch (e: Throwable) {
+            // 任一候选失败则整体失败，已上传的候选需一并清理，保持与原先“全部成功才落库”的语义一致；
+            // 已推送的候选链接随之失效，先发出撤回事件
+            genRequest.imageSessionId?.let { sid ->
+                published.toList().forEach { index ->
+                    generateTaskEvents.publish(
+                        uid,
+                        GenTaskEvent(
+                            sid = sid,
+                            status = GenTaskStatue.FAILED,
+                            candidateIndex = index,
+                            retracted = true
+                        )
+                    )
+                }
+            }
+            withContext(NonCancellable + bulkheads.storage) {
+                uploaded.toList().forEach { key -> runCatching { oss.deleteObject(resolveBucket(), key) } }
+            }
+            throw e
+        }
     }
 
-    @RateLimiter(name = "callGenerateImage")
-    @Retryable(attempts = "2", delay = "1s")
-    fun doGenerate(
+    private suspend fun postProcess(
+        index: Int,
+        generated: NanoBanana.GeneratedImage,
         genRequest: GenRequest,
-        imageReqRecord: GenerateImageReqRecord,
-        uid: String,
-    ): Pair<String?, BufferedImage?> {
-        val sid = genRequest.imageSessionId
-        val cachedRefs = if (sid != null) uploadedImageCache.list(uid, sid) ?: emptyList() else emptyList()
-        val refs: List<String> = if (genRequest.imageUrls != null) {
-            genRequest.imageUrls!!
+        tempDir: Path,
+        uploaded: MutableList<String>,
+    ): Pair<String, Int> {
+        val format = genRequest.format
+        val encoded = postProcessStages.encode.withPermit { encodeGoverned(generated, format) }
+
+        val upscaylModel = genRequest.upscaylModel
+        val upscaylScale = genRequest.upscaylScale
+        val upscaled = if (upscaylModel != null && upscaylScale != null && upscaylScale.scale > 1) {
+            upscale(index, encoded, upscaylModel, upscaylScale, format, tempDir)
         } else {
-            cachedRefs.map { ref -> ref.uri }.toList()
-        }
-        val pair = nano.gen(
-            genRequest.text!!,
-            refs,
-            genRequest.aspectRatio?.ratio,
-            genRequest.system,
-            genRequest.temperature,
-            genRequest.maxOutputTokens,
-            genRequest.topP,
-            genRequest.imageSize?.size ?: ImageSize.X1.size,
-            genRequest.mediaResolution?.name ?: MediaResolution.AUTO.name,
-            genRequest.modelType?.name ?: "BASIC"
-        )
+            null
+        }
+
+        val key = "${tempDir.name}-${index}.${format.ext}"
+        val size = postProcessStages.upload.withPermit {
+            val size = withContext(bulkheads.storage) { putImage(key, format, encoded, upscaled) }
+            uploaded.add(key)
+            size
+        }
+        return key to size
+    }
+
+    /**
+     * 上传结果图片，返回字节数；放大结果直接从文件上传，避免整张大图读入堆
+     */
+    private fun putImage(key: String, format: ImageFormat, encoded: ByteArray, upscaled: Path?): Int {
+        val metadata = ObjectMetadata()
+        metadata.contentDisposition = "attachment; filename=aigi.${format.ext}"
+        metadata.contentType = format.mimeType
+        return if (upscaled != null) {
+            val file = upscaled.toFile()
+            metadata.contentLength = file.length()
+            oss.putObject(resolveBucket(), key, file, metadata)
+            file.length().toInt()
+        } else {
+            metadata.contentLength = encoded.size.toLong()
+            oss.putObject(resolveBucket(), key, ByteArrayInputStream(encoded), metadata)
+            encoded.size
+        }
+    }
+
+    /**
+     * 放大单张图片，返回放大结果文件；失败时返回 null，由调用方回退到原图。
+     * cached 仅用于放大已有图片：刚生成的图片内容唯一，不可能命中缓存，计算摘要与写入缓存都是浪费
+     */
+    private suspend fun upscale(
+        index: Int,
+        encoded: ByteArray,
+        upscaylModel: UpscaylModel,
+        upscaylScale: UpscaylScale,
+        format: ImageFormat,
+        tempDir: Path,
+        cached: Boolean = false,
+    ): Path? = withContext(bulkheads.upscale) {
+        doUpscale(index, encoded, upscaylModel, upscaylScale, format, tempDir, cached)
+    }
+
+    private suspend fun doUpscale(
+        index: Int,
+        encoded: ByteArray,
+        upscaylModel: UpscaylModel,
+        upscaylScale: UpscaylScale,
+        format: ImageFormat,
+        tempDir: Path,
+        cached: Boolean,
+    ): Path? {
+        val upscaledPath = tempDir / "image-upscayl-$index.${format.ext}"
+        val cacheKey = if (cached) {
+            upscaleResultCache.key(encoded, upscaylModel.modelName, upscaylScale.scale, format.ext)
+        } else null
+        if (cacheKey != null && upscaleResultCache.get(cacheKey, upscaledPath.toNioPath())) {
+            return upscaledPath
+        }
+        val fs = FileSystem.SYSTEM
+        val imagePath = tempDir / "image-$index.${format.ext}"
+        fs.write(imagePath) { write(encoded) }
+        val scale = upscaylScale.scale
+        val dimension = imageMemoryGovernor.probe(encoded)
+        // 超大输出走分块模式；放大在外部进程中完成、结果经文件直传 OSS，不经过堆内存，无需占用内存预算
+        val tile = if (dimension != null && imageMemoryGovernor.requiresTiling(dimension, scale)) {
+            imageMemoryGovernor.recordTiled()
+            imageMemoryGovernor.tileSize
+        } else null
+        val upscaled = try {
+            upscaylBatchScheduler.submit(
+                UpscaylJob(
+                    input = imagePath.toNioPath(),
+                    output = upscaledPath.toNioPath(),
+                    model = upscaylModel.modelName,
+                    scale = scale,
+                    format = format.ext,
+                    tile = tile,
+                )
+            )
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.warn("upscayl failed: ${e.message}")
+            false
+        }
+        if (!upscaled) {
+            log.warn("upscayl failed, fallback to original")
+            return null
+        }
+        cacheKey?.let { upscaleResultCache.put(it, upscaledPath.toNioPath()) }
+        return upscaledPath
+    }
+
+    /**
+     * 每个请求只解析一次参考图片，所有候选共用；会话缓存中已有上传响应的元数据时直接使用，内联图片直接取会话中的字节。
+     * 内联图片累计超过 inlineRequestMaxBytes 后，其余内联图片转存到 Files API 按 URI 引用，请求体不超过 Gemini 的上限。
+     * 与原先一致，Files API 中的参考图片不可用（如已过期）时退化为不带这些图片生成
+     */
+    private suspend fun resolveReferenceFiles(uid: String, genRequest: GenRequest): List<NanoBanana.ResolvedFile> {
+        val refs = genRequest.imageUrls.orEmpty()
+        if (refs.isEmpty()) return emptyList()
+        val inline = mutableMapOf<String, NanoBanana.ResolvedFile>()
+        genRequest.imageSessionId?.let { sid ->
+            uploadedImageCache.list(uid, sid)?.forEach { r ->
+                if (r.data != null) {
+                    inline[r.uri] = NanoBanana.ResolvedFile(r.uri, null, r.mimeType, r.data)
+                } else {
+                    r.fileUri?.let { nano.remember(r.uri, it, r.mimeType) }
+                }
+            }
+        }
+        val promoted = mutableMapOf<String, String>()
+        var keyId = refs.firstOrNull { !NanoBanana.isInline(it) }?.let { geminiKeyPool.keyOf(it) }
+        var inlineBytes = 0L
+        refs.forEach { ref ->
+            val data = inline[ref]?.data ?: return@forEach
+            if (inlineBytes + data.size <= geminiFileConfig.inlineRequestMaxBytes) {
+                inlineBytes += data.size
+                return@forEach
+            }
+            try {
+                val uploaded = promoteInline(data, inline.getValue(ref).mimeType, keyId)
+                if (keyId == null) keyId = geminiKeyPool.keyOf(uploaded.uri)
+                promoted[ref] = uploaded.uri
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                log.warn("failed to move inline reference image to files api, skip it: {}", e.message)
+                promoted[ref] = ""
+            }
+        }
+        val fileRefs = refs.mapNotNull { ref ->
+            if (NanoBanana.isInline(ref)) promoted[ref]?.takeIf { it.isNotEmpty() } else ref
+        }
+        touchFiles(fileRefs)
+        val files = try {
+            nano.resolveFiles(fileRefs).associateBy { it.ref }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.warn("failed to resolve reference images, fallback to inline images only: {}", e.message)
+            emptyMap()
+        }
+        return refs.mapNotNull { ref ->
+            val promotedRef = promoted[ref]
+            if (promotedRef != null) files[promotedRef] else inline[ref] ?: files[ref]
+        }
+    }
+
+    private data class CandidateOutput(val text: String?, val key: String?, val size: Int)
+
+    /**
+     * 单次候选生成；限流、熔断与重试由 [ModelCallGovernor] 按模型统一处理，每次尝试都计入调用次数；
+     * BASIC 模型可在每次尝试内按 [HedgingPolicy] 发出对冲请求，对冲成本单独记录
+     */
+    suspend fun doGenerate(
+        genRequest: GenRequest,
+        imageReqRecord: GenerateImageReqRecord,
+        files: List<NanoBanana.ResolvedFile>,
+    ): Pair<String?, NanoBanana.GeneratedImage?> {
+        // 对冲放在治理之内，只计时与对冲网络请求本身，不含并发上限排队与重试退避
+        val hedged = modelCallGovernor.call(genRequest.modelType, genRequest.imageSize?.size ?: ImageSize.X1.size) {
+            hedgingPolicy.run(genRequest.modelType) {
+                synchronized(imageReqRecord) { imageReqRecord.retryCount += 1 }
+                nano.genAsync(
+                    genRequest.text!!,
+                    files,
+                    genRequest.aspectRatio?.ratio,
+                    genRequest.system,
+                    genRequest.temperature,
+                    genRequest.maxOutputTokens,
+                    genRequest.topP,
+                    genRequest.imageSize?.size ?: ImageSize.X1.size,
+                    genRequest.mediaResolution?.name ?: MediaResolution.AUTO.name,
+                    genRequest.modelType?.name ?: "BASIC"
+                )
+            }
+        }
+        val pair = hedged.value
         val usageMetadata = pair.second
         synchronized(imageReqRecord) {
-            imageReqRecord.inputTokens += usageMetadata.promptTokenCount().getOrElse { 0 }
+            val promptTokens = usageMetadata.promptTokenCount().getOrElse { 0 }
+            imageReqRecord.inputTokens += promptTokens
             imageReqRecord.thoughtsTokens += usageMetadata.thoughtsTokenCount().getOrElse { 0 }
             imageReqRecord.outputTokens += usageMetadata.candidatesTokenCount().getOrElse { 0 }
-            imageReqRecord.retryCount += 1
+            if (hedged.hedged) {
+                // 被取消的一份已提交完整输入，按胜出请求的输入 token 估算额外成本
+                imageReqRecord.hedgeCount += 1
+                imageReqRecord.hedgeInputTokens += promptTokens
+            }
         }
         val generateResult = pair.first
         return generateResult
     }
 
-    suspend fun uploadImage(image: StreamingFileUpload?, sid: String?): String? {
+    /**
+     * 需要转码时按 源图 + RGB 画布 两份像素占用内存预算后再解码
+     */
+    private suspend fun encodeGoverned(generated: NanoBanana.GeneratedImage, format: ImageFormat): ByteArray {
+        if (ImageFormat.ofMimeType(generated.mimeType) == format) {
+            return generated.bytes
+        }
+        val weight = imageMemoryGovernor.probe(generated.bytes)
+            ?.let { imageMemoryGovernor.estimate(it, copies = 2) }
+            ?: imageMemoryGovernor.budgetBytes
+        return imageMemoryGovernor.withBudget(weight) { encodeImage(generated, format) }
+    }
+
+    /**
+     * 模型返回的 mimeType 与目标格式一致时直接透传原始字节，仅在格式不一致时才经由 AWT 解码并转码
+     */
+    private fun encodeImage(generated: NanoBanana.GeneratedImage, format: ImageFormat): ByteArray {
+        if (ImageFormat.ofMimeType(generated.mimeType) == format) {
+            return generated.bytes
+        }
+        val source = ImageIO.read(ByteArrayInputStream(generated.bytes))
+            ?: throw BusinessException("无法解析生成的图片")
+        // JPG 不支持透明通道，需先绘制到 RGB 画布
+        val image = if (format == ImageFormat.JPG && source.colorModel.hasAlpha()) {
+            BufferedImage(source.width, source.height, BufferedImage.TYPE_INT_RGB).also { rgb ->
+                val g = rgb.createGraphics()
+                try {
+                    g.drawImage(source, 0, 0, java.awt.Color.WHITE, null)
+                } finally {
+                    g.dispose()
+                }
+            }
+        } else source
+        val out = ByteArrayOutputStream(generated.bytes.size)
+        if (!ImageIO.write(image, format.ext, out)) {
+            throw BusinessException("不支持的图片格式: ${format.ext}")
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * 上传参考图片：先按媒体分辨率缩小并重新压缩，小图保存在会话中内联发送，其余上传到 Files API
+     */
+    suspend fun uploadImage(
+        image: StreamingFileUpload?,
+        sid: String?,
+        mediaResolution: MediaResolution? = null,
+    ): String? {
         val uid = securityService.authentication.get().name
         if (image == null) return null
         val finalSid = sid ?: uploadedImageCache.createSession(uid)
-        val up = withContext(Dispatchers.IO) {
-            val ins = runCatching { image.asInputStream() }.getOrNull() ?: return@withContext null
-            val bytes = runCatching { ins.readAllBytes() }.getOrNull() ?: return@withContext null
-            runCatching { nano.upload(ByteArrayInputStream(bytes), image.filename) }.getOrNull()
-                ?.let { it to bytes.size }
+        val keyId = sessionKey(uid, finalSid)
+        val ref = imageIngest.ingest(image, imageIngestConfig.referenceMaxBytes, REFERENCE_KINDS).use { source ->
+            try {
+                prepareReference(source, keyId, mediaResolution)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                log.warn("failed to upload reference image: {}", e.message)
+                null
+            }
         }
-        if (up != null) uploadedImageCache.append(
-            uid,
-            finalSid,
-            UploadedImageRef(up.first.uri, up.first.mimeType, up.second)
-        )
+        if (ref != null) uploadedImageCache.append(uid, finalSid, ref)
         return finalSid
     }
 
+    /**
+     * 批量上传参考图片：multipart 各部分按顺序到达，逐个流式接收到暂存区后即并行缩小与上传，
+     * 全部完成后一次性追加到上传会话，并返回每个文件的结果
+     */
+    suspend fun uploadImages(
+        images: Publisher<StreamingFileUpload>,
+        sid: String?,
+        mediaResolution: MediaResolution? = null,
+    ): UploadBatchResponse {
+        val uid = securityService.authentication.get().name
+        val finalSid = sid ?: uploadedImageCache.createSession(uid)
+        // 会话中还没有 Files API 图片时预先选定密钥，使并行上传的图片落在同一密钥下
+        val keyId = sessionKey(uid, finalSid) ?: geminiKeyPool.select()
+        val permits = Semaphore(imageIngestConfig.batchConcurrency.coerceAtLeast(1))
+        val sources = Collections.synchronizedList(mutableListOf<IngestedImage>())
+        val results = try {
+            coroutineScope {
+                val pending = mutableListOf<Deferred<Pair<UploadFileResult, UploadedImageRef?>>>()
+                images.asFlow().collect { image ->
+                    val index = pending.size
+                    val failed = { message: String? ->
+                        CompletableDeferred(UploadFileResult(index, image.filename, false, error = message) to null)
+                    }
+                    if (index >= imageIngestConfig.batchMaxFiles) {
+                        image.discard()
+                        pending += failed("超过单次上传数量上限")
+                        return@collect
+                    }
+                    val source = try {
+                        imageIngest.ingest(image, imageIngestConfig.referenceMaxBytes, REFERENCE_KINDS)
+                    } catch (e: BusinessException) {
+                        pending += failed(e.message)
+                        return@collect
+                    }
+                    sources += source
+                    pending += async {
+                        try {
+                            val ref = permits.withPermit { prepareReference(source, keyId, mediaResolution) }
+                            UploadFileResult(index, image.filename, true, ref.size, ref.originalSize) to ref
+                        } catch (e: CancellationException) {
+                            throw e
+                        } catch (e: Exception) {
+                            log.warn("failed to upload reference image {}: {}", image.filename, e.message)
+                            UploadFileResult(index, image.filename, false, error = "图片上传失败") to null
+                        } finally {
+                            source.close()
+                        }
+                    }
+                }
+                pending.awaitAll()
+            }
+        } finally {
+            sources.forEach { it.close() }
+        }
+        val refs = results.mapNotNull { it.second }
+        if (refs.isNotEmpty()) uploadedImageCache.appendAll(uid, finalSid, refs)
+        return UploadBatchResponse(finalSid, results.map { it.first })
+    }
+
+    /**
+     * 会话中第一张 Files API 图片所属的密钥；会话内图片须同属一个密钥
+     */
+    private fun sessionKey(uid: String, sid: String): String? {
+        return uploadedImageCache.list(uid, sid)?.firstOrNull { it.data == null }?.uri?.let { geminiKeyPool.keyOf(it) }
+    }
+
+    /**
+     * 缩小已接收的图片，按大小选择内联或上传到 Files API；上传失败时抛出异常，source 由调用方关闭
+     */
+    private suspend fun prepareReference(
+        source: IngestedImage,
+        keyId: String?,
+        mediaResolution: MediaResolution?,
+    ): UploadedImageRef {
+        val scaled = referenceImageScaler.scale(source, mediaResolution)
+        val originalSize = source.size.toInt()
+        val size = scaled?.bytes?.size ?: originalSize
+        val mimeType = scaled?.mimeType ?: source.kind.mimeType
+        val contentHash = if (scaled != null) DigestUtil.sha256Hex(scaled.bytes) else source.sha256
+        if (size <= geminiFileConfig.inlineMaxBytes) {
+            // 小图留在会话中内联发送，不经过 Files API
+            val data = scaled?.bytes ?: withContext(Dispatchers.IO) { source.readBytes() }
+            return UploadedImageRef(
+                NanoBanana.inlineRef(contentHash),
+                mimeType,
+                size,
+                data = data,
+                originalSize = originalSize
+            )
+        }
+        val uploaded = withContext(bulkheads.geminiFiles) {
+            uploadOrReuse(contentHash, size, keyId) { affinity ->
+                when {
+                    scaled != null -> nano.upload(scaled.bytes, mimeType, affinity)
+                    source.file != null -> nano.upload(source.file, mimeType, affinity)
+                    else -> nano.upload(source.readBytes(), mimeType, affinity)
+                }
+            }
+        }
+        return UploadedImageRef(uploaded.uri, uploaded.mimeType, size, uploaded.fileUri, originalSize = originalSize)
+    }
+
+    /**
+     * 异步任务可能在会话过期或重启后才执行，提交时把仅保存在会话中的内联图片转存到 Files API；
+     * 转存失败时拒绝提交，而不是让任务缺少参考图执行
+     */
+    private suspend fun durableRefs(refs: List<UploadedImageRef>): List<String> {
+        var keyId = refs.firstOrNull { it.data == null }?.uri?.let { geminiKeyPool.keyOf(it) }
+        return refs.map { r ->
+            val data = r.data ?: return@map r.uri
+            val uploaded = try {
+                promoteInline(data, r.mimeType, keyId)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                log.warn("failed to upload inline reference image: {}", e.message)
+                throw BusinessException("参考图片上传失败，请重新上传")
+            }
+            if (keyId == null) keyId = geminiKeyPool.keyOf(uploaded.uri)
+            uploaded.uri
+        }
+    }
+
+    /**
+     * 刷新参考图片文件的最近使用时间，失败不影响生成
+     */
+    private suspend fun touchFiles(refs: List<String>) {
+        try {
+            geminiFileRegistry.touch(refs)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            log.warn("failed to touch gemini files: {}", e.message)
+        }
+    }
+
+    /**
+     * 把会话中的内联图片转存到 Files API，按内容摘要复用已有文件
+     */
+    private suspend fun promoteInline(data: ByteArray, mimeType: String, keyId: String?): NanoBanana.UploadedFile {
+        return withContext(bulkheads.geminiFiles) {
+            uploadOrReuse(DigestUtil.sha256Hex(data), data.size, keyId) { affinity ->
+                nano.upload(data, mimeType, affinity)
+            }
+        }
+    }
+
+    /**
+     * 按内容摘要复用仍存活的 Gemini 文件，未命中时上传并登记；摘要登记失败不影响上传结果
+     */
+    private suspend fun uploadOrReuse(
+        contentHash: String,
+        size: Int,
+        keyId: String?,
+        upload: (String?) -> NanoBanana.UploadedFile,
+    ): NanoBanana.UploadedFile {
+        val reused = runCatching { geminiFileRegistry.find(contentHash, keyId) }
+            .onFailure { log.warn("failed to look up gemini file by hash: {}", it.message) }
+            .getOrNull()
+        if (reused != null) {
+            nano.remember(reused.fileRef, reused.fileUri, reused.mimeType)
+            return NanoBanana.UploadedFile(reused.fileRef, reused.mimeType, reused.fileUri)
+        }
+        val uploaded = upload(keyId)
+        if (uploaded.fileUri != null) {
+            runCatching {
+                geminiFileRegistry.register(
+                    contentHash,
+                    geminiKeyPool.keyOf(uploaded.uri),
+                    uploaded.uri,
+                    uploaded.fileUri,
+                    uploaded.mimeType,
+                    size
+                )
+            }.onFailure { log.warn("failed to register gemini file: {}", it.message) }
+        }
+        return uploaded
+    }
+
+    /**
+     * 删除闲置或过期的参考图片文件，由定时任务调用
+     */
+    suspend fun reapUploadedFiles(): Int {
+        // 排队中的任务已固化参考图引用，执行前不能删除
+        val pinned = generateTaskQueue.unfinished(GenTaskType.GENERATE)
+            .flatMap { task ->
+                runCatching { generateTaskQueue.payload(task, GenRequest::class.java).imageUrls.orEmpty() }
+                    .getOrDefault(emptyList())
+            }
+            .toSet()
+        return geminiFileRegistry.reap(pinned, nano::forget) { ref ->
+            withContext(bulkheads.geminiFiles) { nano.delete(ref) }
+        }
+    }
+
     private fun sign(ref: String, uid: String, exp: Long): String {
         val hmac = HMac(HmacAlgorithm.HmacSHA256, previewConfig.secret.toByteArray())
         val data = "$ref|$uid|$exp"
@@ -494,41 +1134,6 @@ class GenerativeImageImpl(
         return if (expect == sig) uid else null
     }
 
-    private fun resolveUpscaylExecutable(userDir: String): String {
-        val libsDir = Path(userDir).resolve("libs")
-        val osName = System.getProperty("os.name").lowercase()
-        val isWindows = osName.contains("win")
-        val isMac = osName.contains("mac") || osName.contains("darwin")
-        val isLinux = osName.contains("nux") || osName.contains("nix") || osName.contains("linux")
-        val candidates = when {
-            isWindows -> listOf(
-                libsDir.resolve("win").resolve("upscayl-bin.exe"),
-                Path(userDir).resolve("upscayl-bin.exe")
-            )
-
-            isMac -> listOf(
-                libsDir.resolve("mac").resolve("upscayl-bin"),
-                Path(userDir).resolve("upscayl-bin")
-            )
-
-            isLinux -> listOf(
-                libsDir.resolve("linux").resolve("upscayl-bin"),
-                Path(userDir).resolve("upscayl-bin")
-            )
-
-            else -> listOf(
-                libsDir.resolve("linux").resolve("upscayl-bin"),
-                Path(userDir).resolve("upscayl-bin")
-            )
-        }
-        val selected = candidates.firstOrNull { it.toFile().exists() } ?: when {
-            isWindows -> libsDir.resolve("win").resolve("upscayl-bin.exe")
-            isMac -> libsDir.resolve("mac").resolve("upscayl-bin")
-            else -> libsDir.resolve("linux").resolve("upscayl-bin")
-        }
-        return selected.toAbsolutePath().toString()
-    }
-
     override suspend fun preview(ref: String, ip: String, token: String?): String? {
         val tokenUid = verifyToken(ref, token)
         val isTokenVisit = tokenUid != null
@@ -1,8 +1,21 @@
 package coralsum.service.impl
 
+import com.aliyun.oss.HttpMethod
 import com.aliyun.oss.OSS
+import com.aliyun.oss.OSSErrorCode
+import com.aliyun.oss.OSSException
+import com.aliyun.oss.model.DeleteObjectsRequest
+import com.aliyun.oss.model.GeneratePresignedUrlRequest
+import com.aliyun.oss.model.GetObjectRequest
+import com.aliyun.oss.model.ListObjectsRequest
 import com.aliyun.oss.model.ObjectMetadata
+import coralsum.common.enums.IdeaImageSlot
+import coralsum.component.concurrent.Bulkheads
 import coralsum.component.excption.BusinessException
+import coralsum.component.image.ImageIngest
+import coralsum.component.image.ImageKind
+import coralsum.component.image.IngestedImage
+import coralsum.config.ImageIngestConfig
 import coralsum.config.OssConfig
 import coralsum.infrastructure.entity.IdeaCategory
 import coralsum.infrastructure.entity.IdeaTag
@@ -13,14 +26,14 @@ import coralsum.infrastructure.repository.IdeaTagRepository
 import coralsum.infrastructure.repository.IdeaTemplateRepository
 import coralsum.infrastructure.repository.IdeaTemplateTagRelRepository
 import coralsum.service.IIdeaService
+import coralsum.service.PresignedUpload
 import coralsum.common.dto.PageResp
+import coralsum.toolkit.logger
 import io.micronaut.http.multipart.StreamingFileUpload
 import io.micronaut.security.utils.SecurityService
 import jakarta.inject.Singleton
-import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.withContext
-import java.io.ByteArrayInputStream
 import java.time.LocalDateTime
 import java.util.*
 
@@ -33,8 +46,16 @@ class IdeaServiceImpl(
     private val ossConfig: OssConfig,
     private val oss: OSS,
     private val securityService: SecurityService,
+    private val bulkheads: Bulkheads,
+    private val imageIngest: ImageIngest,
+    private val imageIngestConfig: ImageIngestConfig,
 ) : IIdeaService {
 
+    private companion object {
+        val IDEA_IMAGE_KINDS = setOf(ImageKind.PNG, ImageKind.JPEG, ImageKind.WEBP)
+        val log = logger<IdeaServiceImpl>()
+    }
+
     override suspend fun listCategories(): List<IdeaCategory> = categoryRepo.findAll().toList()
 
     override suspend fun listCategoriesPage(page: Int, size: Int): PageResp<IdeaCategory> {
@@ -289,44 +310,168 @@ class IdeaServiceImpl(
     }
 
     override suspend fun uploadOriginalImage(templateId: Long, file: StreamingFileUpload): String? {
-        val po = templateRepo.findById(templateId) ?: throw BusinessException("idea.error.template_not_found")
-        val (uri, size) = withContext(Dispatchers.IO) {
-            val ins = runCatching { file.asInputStream() }.getOrNull() ?: return@withContext null
-            val bytes = runCatching { ins.readAllBytes() }.getOrNull() ?: return@withContext null
-            if (bytes.size > 1_000_000) throw BusinessException("idea.error.image_too_large")
-            val ext = guessExt(file.filename)
-            val key = "idea/original/${templateId}/${UUID.randomUUID()}.$ext"
-            val metadata = ObjectMetadata()
-            metadata.contentDisposition = "attachment; filename=${file.filename}"
-            metadata.contentType = mimeByExt(ext)
-            oss.putObject(resolveBucket(), key, ByteArrayInputStream(bytes), metadata)
-            Pair(key, bytes.size)
-        } ?: return null
-        val list = runCatching { parseJsonArray(po.originalImageRefs) }.getOrNull() ?: mutableListOf<String>()
-        if (list.size >= 10) throw BusinessException("idea.error.original_image_limit")
-        list.add(uri)
-        po.originalImageRefs = toJsonArray(list)
-        templateRepo.update(po)
-        return uri
+        return uploadImage(templateId, IdeaImageSlot.ORIGINAL, file)
     }
 
     override suspend fun uploadEffectImage(templateId: Long, file: StreamingFileUpload): String? {
+        return uploadImage(templateId, IdeaImageSlot.EFFECT, file)
+    }
+
+    private suspend fun uploadImage(templateId: Long, slot: IdeaImageSlot, file: StreamingFileUpload): String? {
         val po = templateRepo.findById(templateId) ?: throw BusinessException("idea.error.template_not_found")
-        val uri = withContext(Dispatchers.IO) {
-            val ins = runCatching { file.asInputStream() }.getOrNull() ?: return@withContext null
-            val bytes = runCatching { ins.readAllBytes() }.getOrNull() ?: return@withContext null
-            if (bytes.size > 1_000_000) throw BusinessException("idea.error.image_too_large")
-            val ext = guessExt(file.filename)
-            val key = "idea/effect/${templateId}/${UUID.randomUUID()}.$ext"
-            val metadata = ObjectMetadata()
-            metadata.contentDisposition = "attachment; filename=${file.filename}"
-            metadata.contentType = mimeByExt(ext)
-            oss.putObject(resolveBucket(), key, ByteArrayInputStream(bytes), metadata)
+        val uri = ingest(file).use { image ->
+            val key = "${keyPrefix(templateId, slot)}${UUID.randomUUID()}.${image.kind.ext}"
+            withContext(bulkheads.storage) { putImage(key, image, file.filename) }
             key
-        } ?: return null
-        po.effectImageRef = uri
+        }
+        return attachImage(po, slot, uri)
+    }
+
+    /**
+     * 签发直传对象存储的 PUT 地址，签名包含 Content-Type；对象存储无法在签名中限制大小，大小在完成回调时校验
+     */
+    override suspend fun presignImageUpload(
+        templateId: Long,
+        slot: IdeaImageSlot,
+        contentType: String,
+        size: Long,
+    ): PresignedUpload {
+        val po = templateRepo.findById(templateId) ?: throw BusinessException("idea.error.template_not_found")
+        val kind = IDEA_IMAGE_KINDS.firstOrNull { it.mimeType == contentType.lowercase() }
+            ?: throw BusinessException("idea.error.image_type_unsupported")
+        if (size <= 0 || size > imageIngestConfig.ideaMaxBytes) throw BusinessException("idea.error.image_too_large")
+        if (slot == IdeaImageSlot.ORIGINAL && originalRefs(po).size >= 10) {
+            throw BusinessException("idea.error.original_image_limit")
+        }
+        val key = "${keyPrefix(templateId, slot)}${UUID.randomUUID()}.${kind.ext}"
+        val expiration = Date(System.currentTimeMillis() + imageIngestConfig.ideaPresignTtlSeconds * 1000)
+        val req = GeneratePresignedUrlRequest(resolveBucket(), key, HttpMethod.PUT)
+        req.expiration = expiration
+        req.contentType = kind.mimeType
+        val url = oss.generatePresignedUrl(req)
+        return PresignedUpload(
+            key = key,
+            url = url.toString(),
+            method = HttpMethod.PUT.name,
+            headers = mapOf("Content-Type" to kind.mimeType),
+            maxBytes = imageIngestConfig.ideaMaxBytes,
+            expiresAt = expiration.time,
+        )
+    }
+
+    /**
+     * 直传完成回调：HEAD 校验大小与类型，并读取文件头确认格式，不合格的对象直接删除
+     */
+    override suspend fun completeImageUpload(templateId: Long, slot: IdeaImageSlot, key: String): String? {
+        val po = templateRepo.findById(templateId) ?: throw BusinessException("idea.error.template_not_found")
+        if (!key.startsWith(keyPrefix(templateId, slot))) throw BusinessException("idea.error.upload_key_invalid")
+        val bucket = resolveBucket()
+        withContext(bulkheads.storage) {
+            val metadata = try {
+                oss.getObjectMetadata(bucket, key)
+            } catch (e: OSSException) {
+                if (e.errorCode == OSSErrorCode.NO_SUCH_KEY) throw BusinessException("idea.error.upload_not_found")
+                throw e
+            }
+            val error = when {
+                metadata.contentLength <= 0 || metadata.contentLength > imageIngestConfig.ideaMaxBytes ->
+                    "idea.error.image_too_large"
+
+                sniff(bucket, key)?.takeIf { it in IDEA_IMAGE_KINDS }?.mimeType != metadata.contentType ->
+                    "idea.error.image_type_unsupported"
+
+                else -> null
+            }
+            if (error != null) {
+                runCatching { oss.deleteObject(bucket, key) }
+                throw BusinessException(error)
+            }
+        }
+        return attachImage(po, slot, key)
+    }
+
+    private fun sniff(bucket: String, key: String): ImageKind? {
+        val req = GetObjectRequest(bucket, key)
+        req.setRange(0, ImageKind.HEADER_SIZE - 1L)
+        val header = oss.getObject(req).use { it.objectContent.readNBytes(ImageKind.HEADER_SIZE) }
+        return ImageKind.sniff(header, header.size)
+    }
+
+    private fun keyPrefix(templateId: Long, slot: IdeaImageSlot): String = "idea/${slot.dir}/${templateId}/"
+
+    private fun originalRefs(po: IdeaTemplate): MutableList<String> {
+        return runCatching { parseJsonArray(po.originalImageRefs) }.getOrNull() ?: mutableListOf()
+    }
+
+    /**
+     * 登记到模版：原图追加（最多10张，重复回调不重复追加），效果图替换；
+     * 超出张数被拒绝的对象与被替换的旧效果图随即删除，避免成为无人引用的孤儿对象
+     */
+    private suspend fun attachImage(po: IdeaTemplate, slot: IdeaImageSlot, key: String): String {
+        var replaced: String? = null
+        when (slot) {
+            IdeaImageSlot.ORIGINAL -> {
+                val list = originalRefs(po)
+                if (key in list) return key
+                if (list.size >= 10) {
+                    runCatching { oss.deleteObject(resolveBucket(), key) }
+                    throw BusinessException("idea.error.original_image_limit")
+                }
+                list.add(key)
+                po.originalImageRefs = toJsonArray(list)
+            }
+
+            IdeaImageSlot.EFFECT -> {
+                replaced = po.effectImageRef?.takeIf { it.isNotBlank() && it != key }
+                po.effectImageRef = key
+            }
+        }
         templateRepo.update(po)
-        return uri
+        replaced?.let { runCatching { oss.deleteObject(resolveBucket(), it) } }
+        return key
+    }
+
+    /**
+     * 清理模版图片目录下无人引用的对象：签发后未完成回调的直传、校验或登记途中失败遗留的对象。
+     * 只处理早于预签名有效期加宽限期的对象，进行中的直传不受影响；先列出候选再读取引用，列出后才登记的对象不会被误删
+     */
+    suspend fun sweepOrphanImages(): Int {
+        val bucket = resolveBucket()
+        val cutoff = Date(
+            System.currentTimeMillis() -
+                (imageIngestConfig.ideaPresignTtlSeconds + imageIngestConfig.ideaOrphanGraceSeconds) * 1000
+        )
+        val candidates = withContext(bulkheads.storage) {
+            val keys = mutableListOf<String>()
+            for (slot in IdeaImageSlot.entries) {
+                var marker: String? = null
+                do {
+                    val req = ListObjectsRequest(bucket).withPrefix("idea/${slot.dir}/").withMaxKeys(1000)
+                    if (marker != null) req.marker = marker
+                    val listing = oss.listObjects(req)
+                    listing.objectSummaries.filter { it.lastModified.before(cutoff) }.mapTo(keys) { it.key }
+                    marker = listing.nextMarker
+                } while (listing.isTruncated)
+            }
+            keys
+        }
+        if (candidates.isEmpty()) return 0
+        val referenced = HashSet<String>()
+        templateRepo.findAll().collect { po ->
+            referenced.addAll(originalRefs(po))
+            po.effectImageRef?.let { referenced.add(it) }
+        }
+        val orphans = candidates.filterNot { it in referenced }
+        withContext(bulkheads.storage) {
+            for (batch in orphans.chunked(1000)) {
+                try {
+                    oss.deleteObjects(DeleteObjectsRequest(bucket).withKeys(batch).withQuiet(true))
+                } catch (e: Exception) {
+                    log.warn("failed to delete orphan idea images: {}", e.message)
+                }
+            }
+        }
+        return orphans.size
     }
 
     override suspend fun deleteOriginalImage(templateId: Long, key: String): Boolean {
@@ -396,27 +541,34 @@ class IdeaServiceImpl(
         return true
     }
 
-    private fun resolveBucket(): String {
-        val bucket = ossConfig.bucket
-        if (bucket.isNullOrBlank()) throw BusinessException("oss.error.bucket_missing")
-        return bucket
+    /**
+     * 按文件头识别格式并在超过大小上限时立即中止，不再整体读入内存后才校验
+     */
+    private suspend fun ingest(file: StreamingFileUpload): IngestedImage {
+        return imageIngest.ingest(
+            file,
+            imageIngestConfig.ideaMaxBytes,
+            IDEA_IMAGE_KINDS,
+            tooLargeMessage = "idea.error.image_too_large",
+            unsupportedMessage = "idea.error.image_type_unsupported"
+        )
     }
 
-    private fun guessExt(filename: String?): String {
-        val f = (filename ?: "").lowercase()
-        return when {
-            f.endsWith(".png") -> "png"
-            f.endsWith(".jpg") || f.endsWith(".jpeg") -> "jpg"
-            f.endsWith(".webp") -> "webp"
-            else -> "png"
-        }
+    /**
+     * 从暂存的上传流式写入对象存储，声明长度以免 SDK 为计算长度缓冲整个流
+     */
+    private fun putImage(key: String, image: IngestedImage, filename: String?) {
+        val metadata = ObjectMetadata()
+        metadata.contentDisposition = "attachment; filename=${filename}"
+        metadata.contentType = image.kind.mimeType
+        metadata.contentLength = image.size
+        image.openStream().use { oss.putObject(resolveBucket(), key, it, metadata) }
     }
 
-    private fun mimeByExt(ext: String): String = when (ext.lowercase()) {
-        "png" -> "image/png"
-        "jpg", "jpeg" -> "image/jpeg"
-        "webp" -> "image/webp"
-        else -> "application/octet-stream"
+    private fun resolveBucket(): String {
+        val bucket = ossConfig.bucket
+        if (bucket.isNullOrBlank()) throw BusinessException("oss.error.bucket_missing")
+        return bucket
     }
 
     private fun parseJsonArray(json: String?): MutableList<String> {
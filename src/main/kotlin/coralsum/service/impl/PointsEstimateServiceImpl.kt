@@ -24,6 +24,7 @@ class PointsEstimateServiceImpl(
     private fun BigDecimal.divSafe(divisor: BigDecimal): BigDecimal = divide(divisor, COST_SCALE, COST_ROUND)
 
     override suspend fun estimate(req: EstimatePointsReq): EstimatePointsResp {
+        if (req.upscaleOnly) return estimateUpscaleOnly(req)
         val pricing = pricingConfig
         val usdToCny = pricing.usdToCny.toBigDecimal()
         val coefficient = pricing.coefficient.toBigDecimal()
@@ -84,16 +85,7 @@ class PointsEstimateServiceImpl(
         }
         val visitMultiplier = pricing.traffic.visitMultiplier.toBigDecimal()
         val totalBytes = bytesPerImage.multiply(images).multiply(visitMultiplier)
-        val gb = totalBytes
-            .divSafe(BigDecimal("1024"))
-            .divSafe(BigDecimal("1024"))
-            .divSafe(BigDecimal("1024"))
-        val hour = Instant.ofEpochMilli(req.timestampMs).atZone(ZoneId.systemDefault()).hour
-        val busy = hour in pricing.oss.busyStartHour until pricing.oss.busyEndHour
-        val ossRate = (if (busy) pricing.oss.busyRmbPerGb else pricing.oss.idleRmbPerGb).toBigDecimal()
-        val ossRmb = gb.multiply(ossRate)
-        val natRmb = gb.multiply(pricing.traffic.natRmbPerGb.toBigDecimal())
-        val proxyRmb = gb.multiply(pricing.traffic.proxyRmbPerGb.toBigDecimal())
+        val (ossRmb, natRmb, proxyRmb) = trafficRmb(totalBytes, req.timestampMs)
 
         var total = evalRmb + previewRmbTokens + imageRmb + ossRmb + natRmb + proxyRmb
         val scale = req.upscaylScale
@@ -118,4 +110,62 @@ class PointsEstimateServiceImpl(
             pointsToDeduct = points,
         )
     }
+
+    override fun upscaleRmb(scale: Int, images: Int): BigDecimal {
+        val pricing = pricingConfig
+        if (!pricing.upscayl.enabled || scale <= 1) return BigDecimal.ZERO
+        return pricing.upscayl.pricePerImageUsd.toBigDecimal()
+            .multiply((scale - 1).toBigDecimal())
+            .multiply(images.toBigDecimal())
+            .multiply(pricing.usdToCny.toBigDecimal())
+    }
+
+    /**
+     * 仅放大：放大计算成本 + 放大后图片的流量成本（体积按倍数平方估算）
+     */
+    private fun estimateUpscaleOnly(req: EstimatePointsReq): EstimatePointsResp {
+        val pricing = pricingConfig
+        val scale = req.upscaylScale
+        val images = (if (req.candidateCount > 0) req.candidateCount else 1)
+        val upscaleRmb = upscaleRmb(scale, images)
+        val totalBytes = req.imageSizeBytes.toBigDecimal()
+            .multiply((scale * scale).toBigDecimal())
+            .multiply(images.toBigDecimal())
+            .multiply(pricing.traffic.visitMultiplier.toBigDecimal())
+        val (ossRmb, natRmb, proxyRmb) = trafficRmb(totalBytes, req.timestampMs)
+        val total = upscaleRmb + ossRmb + natRmb + proxyRmb
+        val points = total
+            .multiply(pricing.coefficient.toBigDecimal())
+            .multiply(pricing.pointsPerRmb.toBigDecimal())
+            .setScale(0, RoundingMode.HALF_UP)
+            .toInt()
+        return EstimatePointsResp(
+            evalRmb = BigDecimal.ZERO,
+            previewRmbTokens = BigDecimal.ZERO,
+            imageRmb = upscaleRmb,
+            ossRmb = ossRmb,
+            natRmb = natRmb,
+            proxyRmb = proxyRmb,
+            totalCostRmb = total,
+            pointsToDeduct = points,
+        )
+    }
+
+    /**
+     * 流量成本：OSS 出网（区分忙闲时）、内网穿透、代理
+     */
+    private fun trafficRmb(totalBytes: BigDecimal, timestampMs: Long): Triple<BigDecimal, BigDecimal, BigDecimal> {
+        val pricing = pricingConfig
+        val gb = totalBytes
+            .divSafe(BigDecimal("1024"))
+            .divSafe(BigDecimal("1024"))
+            .divSafe(BigDecimal("1024"))
+        val hour = Instant.ofEpochMilli(timestampMs).atZone(ZoneId.systemDefault()).hour
+        val busy = hour in pricing.oss.busyStartHour until pricing.oss.busyEndHour
+        val ossRate = (if (busy) pricing.oss.busyRmbPerGb else pricing.oss.idleRmbPerGb).toBigDecimal()
+        val ossRmb = gb.multiply(ossRate)
+        val natRmb = gb.multiply(pricing.traffic.natRmbPerGb.toBigDecimal())
+        val proxyRmb = gb.multiply(pricing.traffic.proxyRmbPerGb.toBigDecimal())
+        return Triple(ossRmb, natRmb, proxyRmb)
+    }
 }
@@ -54,6 +54,10 @@ class UserPointsServiceImpl(
         )
     }
 
+    override suspend fun findTier(openUserId: Long): MembershipTier {
+        return userPointsRepository.findTierByOpenUserId(openUserId) ?: MembershipTier.FREE
+    }
+
     override suspend fun addPermanentPoints(openUserId: Long, delta: Int): UserPoints {
         val points = getOrCreateByOpenUserId(openUserId)
         points.permanentPoints = points.permanentPoints.add(delta.toBigDecimal()).max(BigDecimal.ZERO)
@@ -253,18 +257,30 @@ class UserPointsServiceImpl(
                 val natRmb = gb.multiply(pricing.traffic.natRmbPerGb.toBigDecimal()).multiply(trafficMultiplier)
                 val proxyRmb = gb.multiply(pricing.traffic.proxyRmbPerGb.toBigDecimal()).multiply(trafficMultiplier)
 
+                // ========= 对冲成本（平台承担） =========
+
+                val hedgeRmb = event.hedgeInputTokens.toBigDecimal()
+                    .divSafe(BigDecimal("1000000"))
+                    .multiply(inputUsdPerMTokens)
+                    .multiply(usdToCny)
+
                 // ========= 总成本 =========
 
                 val baseCostRmb = if (event.success) {
                     evalRmb + previewRmbTokens + thoughtsRmb + imageRmb + ossRmb + natRmb + proxyRmb
+                } else if (event.upscaleOnly) {
+                    // 仅放大失败时没有模型调用，不计费
+                    BigDecimal.ZERO
                 } else {
                     evalRmb + previewRmbTokens + estimateImageRmb
                 }
 
-                val upExtra =
-                    if (event.success && pricing.upscayl.enabled && pricing.upscayl.chargeByScale && event.upscaylScale > 1)
-                        baseCostRmb.multiply((event.upscaylScale - 1).toBigDecimal())
+                val upExtra = if (event.upscaleOnly) {
+                    if (event.success) pointsEstimateService.upscaleRmb(event.upscaylScale, event.imageCount)
                     else BigDecimal.ZERO
+                } else if (event.success && pricing.upscayl.enabled && pricing.upscayl.chargeByScale && event.upscaylScale > 1) {
+                    baseCostRmb.multiply((event.upscaylScale - 1).toBigDecimal())
+                } else BigDecimal.ZERO
 
                 val totalCostRmb = baseCostRmb + upExtra
 
@@ -305,13 +321,17 @@ class UserPointsServiceImpl(
                           "proxy_rmb": $proxyRmb,
                           "upscayl_extra_rmb": $upExtra,
                           "upscayl_scale": ${event.upscaylScale},
+                          "hedge_count": ${event.hedgeCount},
+                          "hedge_rmb": $hedgeRmb,
                           "total_cost_rmb": $totalCostRmb,
                           "points_to_deduct": $pointsToDeduct
                         }
                         """.trimIndent()
 
-                val refs = if (event.recordId != null)
-                    generateImageReqRefRepository.findAllByRecordId(event.recordId)
+                val refs = if (event.imageRefs != null)
+                    event.imageRefs
+                else if (event.recordId != null)
+                    generateImageReqRefRepository.findAllByRecordId(event.recordId).map { it.imageRef }
                 else emptyList()
 
                 if (refs.isEmpty()) {
@@ -331,7 +351,7 @@ class UserPointsServiceImpl(
                             UserPointsDeduction(
                                 uid = event.uid,
                                 recordId = event.recordId,
-                                imageRef = r.imageRef,
+                                imageRef = r,
                                 success = event.success,
                                 pointsDeducted = pointsToDeduct,
                                 costDetail = costDetail
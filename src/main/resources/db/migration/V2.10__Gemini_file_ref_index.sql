@@ -0,0 +1,2 @@
+-- 解析与提交时按文件引用刷新最近使用时间
+CREATE INDEX IF NOT EXISTS idx_gemini_file_file_ref ON gemini_file (file_ref);
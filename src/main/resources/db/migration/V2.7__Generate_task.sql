@@ -0,0 +1,19 @@
+CREATE TABLE IF NOT EXISTS generate_task
+(
+    id            IDENTITY PRIMARY KEY,
+    sid           VARCHAR(64)  NOT NULL,
+    uid           VARCHAR(128) NOT NULL,
+    task_type     VARCHAR(32)  NOT NULL,
+    status        VARCHAR(32)  NOT NULL,
+    payload       JSON,
+    result        JSON,
+    error_message VARCHAR(1000),
+    attempts      INT DEFAULT 0,
+    start_time    TIMESTAMP,
+    finish_time   TIMESTAMP,
+    create_time   TIMESTAMP,
+    update_time   TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_generate_task_uid_sid ON generate_task (uid, sid);
+CREATE INDEX IF NOT EXISTS idx_generate_task_status ON generate_task (status);
@@ -0,0 +1,5 @@
+-- 为生成请求记录表增加对冲请求计数与额外输入token字段，对冲成本由平台承担，不计入用户扣费
+ALTER TABLE generate_image_req_record
+    ADD COLUMN hedge_count INT DEFAULT 0 NOT NULL COMMENT '对冲请求次数';
+ALTER TABLE generate_image_req_record
+    ADD COLUMN hedge_input_tokens INT DEFAULT 0 NOT NULL COMMENT '对冲请求额外输入token数';
@@ -0,0 +1,18 @@
+-- 已上传到 Gemini Files API 的参考图片，按内容摘要复用；文件在上传 48 小时后由 Files API 自动删除
+CREATE TABLE IF NOT EXISTS gemini_file
+(
+    id             IDENTITY PRIMARY KEY,
+    content_hash   VARCHAR(64)  NOT NULL,
+    key_id         VARCHAR(16)  NOT NULL,
+    file_ref       VARCHAR(256) NOT NULL,
+    file_uri       VARCHAR(512) NOT NULL,
+    mime_type      VARCHAR(64)  NOT NULL,
+    size_bytes     INT DEFAULT 0,
+    expire_time    TIMESTAMP    NOT NULL,
+    last_used_time TIMESTAMP    NOT NULL,
+    create_time    TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS idx_gemini_file_content_hash ON gemini_file (content_hash);
+CREATE INDEX IF NOT EXISTS idx_gemini_file_expire_time ON gemini_file (expire_time);
+CREATE INDEX IF NOT EXISTS idx_gemini_file_last_used_time ON gemini_file (last_used_time);
@@ -0,0 +1,128 @@
+package coralsum.component.concurrent
+
+import coralsum.common.enums.MembershipTier
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.FairShareConfig
+import coralsum.config.GenerateTaskConfig
+import coralsum.config.GeneratorConfig
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+class FairShareSchedulerTest {
+
+    private fun lane(
+        capacity: Int = 1,
+        maxQueued: Int = 100,
+        perUserCap: Int = 100,
+    ) = FairShareLane(
+        name = "test",
+        capacity = capacity,
+        maxQueued = maxQueued,
+        retryAfterSeconds = 3,
+        agingSeconds = 0,
+        weight = { if (it == MembershipTier.PRO) 4 else 1 },
+        perUserCap = { perUserCap },
+    )
+
+    private val free = ScheduleOwner("free", MembershipTier.FREE)
+    private val pro = ScheduleOwner("pro", MembershipTier.PRO)
+
+    @Test
+    fun higherWeightGetsProportionallyEarlierSlots() = runBlocking {
+        val lane = lane()
+        val gate = CompletableDeferred<Unit>()
+        val holder = launch(start = CoroutineStart.UNDISPATCHED) {
+            lane.withSlot(ScheduleOwner("holder", MembershipTier.FREE)) { gate.await() }
+        }
+        val order = mutableListOf<String>()
+        val jobs = mutableListOf<Job>()
+        // 起始标签：free-1=0, free-2=1, pro-1=0, pro-2=0.25
+        for (name in listOf("free-1", "free-2")) {
+            jobs += launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free) { order += name } }
+        }
+        for (name in listOf("pro-1", "pro-2")) {
+            jobs += launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(pro) { order += name } }
+        }
+        Assertions.assertEquals(4, lane.queued)
+
+        gate.complete(Unit)
+        holder.join()
+        jobs.joinAll()
+        Assertions.assertEquals(listOf("free-1", "pro-1", "pro-2", "free-2"), order)
+    }
+
+    @Test
+    fun perUserCapLetsOtherUsersOvertake() = runBlocking {
+        val lane = lane(capacity = 2, perUserCap = 1)
+        val gate = CompletableDeferred<Unit>()
+        val running = mutableListOf<String>()
+        val a1 = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free) { running += "a1"; gate.await() } }
+        val a2 = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free) { running += "a2" } }
+        val b1 = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(pro) { running += "b1"; gate.await() } }
+
+        // a2 受单用户上限阻塞，后到的 b1 先拿到第二个槽位
+        Assertions.assertEquals(listOf("a1", "b1"), running)
+        Assertions.assertEquals(1, lane.queued)
+
+        gate.complete(Unit)
+        joinAll(a1, a2, b1)
+        Assertions.assertEquals(listOf("a1", "b1", "a2"), running)
+    }
+
+    @Test
+    fun rejectsWhenQueueIsFull() = runBlocking {
+        val lane = lane(maxQueued = 1)
+        val gate = CompletableDeferred<Unit>()
+        val holder = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free) { gate.await() } }
+        val queued = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free) { } }
+
+        val e = assertThrows<TooManyRequestsException> { runBlocking { lane.withSlot(pro) { } } }
+        Assertions.assertEquals(3L, e.retryAfterSeconds)
+        Assertions.assertEquals(1, lane.stats().rejected.toInt())
+
+        gate.complete(Unit)
+        joinAll(holder, queued)
+    }
+
+    @Test
+    fun cancelledWaiterLeavesTheQueue() = runBlocking {
+        val lane = lane()
+        val gate = CompletableDeferred<Unit>()
+        val holder = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(free, "held") { gate.await() } }
+        val waiter = launch(start = CoroutineStart.UNDISPATCHED) { lane.withSlot(pro, "waiting") { } }
+        Assertions.assertEquals(0, lane.estimate("waiting")?.position)
+
+        waiter.cancelAndJoin()
+        Assertions.assertEquals(0, lane.queued)
+        Assertions.assertNull(lane.estimate("waiting"))
+
+        gate.complete(Unit)
+        holder.join()
+        Assertions.assertEquals(0, lane.stats().active)
+    }
+
+    @Test
+    fun schedulerMapsTiersToConfiguredCaps() = runBlocking {
+        val config = FairShareConfig().apply { freeMaxInFlight = 1 }
+        val scheduler = FairShareScheduler(config, GeneratorConfig().apply { maxInFlight = 4 }, GenerateTaskConfig())
+        val gate = CompletableDeferred<Unit>()
+        val first = launch(start = CoroutineStart.UNDISPATCHED) { scheduler.calls.withSlot(free) { gate.await() } }
+        val second = launch(start = CoroutineStart.UNDISPATCHED) { scheduler.calls.withSlot(free) { } }
+
+        // 容量还有空余，但免费用户已达在途上限
+        Assertions.assertEquals(1, scheduler.calls.stats().active)
+        Assertions.assertEquals(1, scheduler.calls.queued)
+
+        gate.complete(Unit)
+        joinAll(first, second)
+        Assertions.assertEquals(0, scheduler.calls.queued)
+    }
+}
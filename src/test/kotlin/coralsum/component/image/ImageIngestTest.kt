@@ -0,0 +1,113 @@
+package coralsum.component.image
+
+import cn.hutool.crypto.digest.DigestUtil
+import coralsum.component.excption.BusinessException
+import coralsum.config.ImageIngestConfig
+import io.micronaut.http.multipart.StreamingFileUpload
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.ByteArrayInputStream
+import java.lang.reflect.Proxy
+import java.nio.file.Files
+
+class ImageIngestTest {
+
+    private val png = byteArrayOf(0x89.toByte(), 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A, 0, 0, 0, 0x0D)
+    private val jpeg = byteArrayOf(0xFF.toByte(), 0xD8.toByte(), 0xFF.toByte(), 0xE0.toByte(), 0, 0x10, 0, 0, 0, 0, 0, 0)
+    private val webp = "RIFF".toByteArray() + byteArrayOf(0x24, 0, 0, 0) + "WEBPVP8 ".toByteArray()
+
+    private val ingest = ImageIngest(ImageIngestConfig().apply {
+        bufferSize = 16
+        bufferPoolSize = 2
+        spoolThresholdBytes = 64
+    })
+
+    /**
+     * 只实现 ingest 用到的 asInputStream，其余方法不会被调用
+     */
+    private fun upload(bytes: ByteArray): StreamingFileUpload = Proxy.newProxyInstance(
+        javaClass.classLoader,
+        arrayOf(StreamingFileUpload::class.java)
+    ) { proxy, method, _ ->
+        when (method.name) {
+            "asInputStream" -> ByteArrayInputStream(bytes)
+            "getFilename" -> "upload.bin"
+            "toString" -> "StreamingFileUpload(upload.bin)"
+            "hashCode" -> System.identityHashCode(proxy)
+            else -> throw UnsupportedOperationException(method.name)
+        }
+    } as StreamingFileUpload
+
+    private fun image(header: ByteArray, size: Int): ByteArray = header + ByteArray(size - header.size) { it.toByte() }
+
+    @Test
+    fun sniffRecognisesSupportedFormats() {
+        Assertions.assertEquals(ImageKind.PNG, ImageKind.sniff(png, png.size))
+        Assertions.assertEquals(ImageKind.JPEG, ImageKind.sniff(jpeg, jpeg.size))
+        Assertions.assertEquals(ImageKind.WEBP, ImageKind.sniff(webp, webp.size))
+        // JPEG 只需 SOI 加下一个标记的首字节
+        Assertions.assertEquals(ImageKind.JPEG, ImageKind.sniff(jpeg, 3))
+    }
+
+    @Test
+    fun sniffRejectsUnknownAndTruncatedHeaders() {
+        val gif = "GIF89a".toByteArray() + ByteArray(6)
+        Assertions.assertNull(ImageKind.sniff(gif, gif.size))
+        // 文件名或 Content-Type 可以伪造，只看魔数
+        Assertions.assertNull(ImageKind.sniff("<svg xmlns=".toByteArray(), 11))
+        // 长度不足时不越界读取缓冲区中的残留字节
+        Assertions.assertNull(ImageKind.sniff(png, 4))
+        Assertions.assertNull(ImageKind.sniff(webp, 8))
+    }
+
+    @Test
+    fun smallUploadStaysInMemory() = runBlocking {
+        val bytes = image(png, 40)
+        ingest.ingest(upload(bytes), 1024, setOf(ImageKind.PNG)).use { image ->
+            Assertions.assertEquals(ImageKind.PNG, image.kind)
+            Assertions.assertEquals(40L, image.size)
+            Assertions.assertEquals(DigestUtil.sha256Hex(bytes), image.sha256)
+            Assertions.assertNull(image.file)
+            Assertions.assertArrayEquals(bytes, image.readBytes())
+        }
+    }
+
+    @Test
+    fun largeUploadIsSpooledToDiskAndDeletedOnClose() = runBlocking {
+        val bytes = image(jpeg, 500)
+        val image = ingest.ingest(upload(bytes), 1024, setOf(ImageKind.JPEG))
+        val file = image.file
+        Assertions.assertNotNull(file)
+        Assertions.assertArrayEquals(bytes, image.openStream().use { it.readBytes() })
+        Assertions.assertEquals(DigestUtil.sha256Hex(bytes), image.sha256)
+
+        image.close()
+        Assertions.assertFalse(Files.exists(file!!))
+    }
+
+    @Test
+    fun oversizedUploadIsRejected() = runBlocking {
+        val e = assertThrows<BusinessException> {
+            runBlocking { ingest.ingest(upload(image(png, 500)), 100, setOf(ImageKind.PNG), tooLargeMessage = "too large") }
+        }
+        Assertions.assertEquals("too large", e.message)
+    }
+
+    @Test
+    fun unacceptedFormatIsRejected() = runBlocking {
+        val e = assertThrows<BusinessException> {
+            runBlocking { ingest.ingest(upload(image(webp, 40)), 1024, setOf(ImageKind.PNG), unsupportedMessage = "bad type") }
+        }
+        Assertions.assertEquals("bad type", e.message)
+    }
+
+    @Test
+    fun uploadShorterThanHeaderIsRejected() = runBlocking {
+        assertThrows<BusinessException> {
+            runBlocking { ingest.ingest(upload(byteArrayOf(0xFF.toByte(), 0xD8.toByte())), 1024, setOf(ImageKind.PNG)) }
+        }
+        Unit
+    }
+}
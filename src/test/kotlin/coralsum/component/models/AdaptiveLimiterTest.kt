@@ -0,0 +1,110 @@
+package coralsum.component.models
+
+import coralsum.config.ModelGovernorConfig
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class AdaptiveLimiterTest {
+
+    private fun config(block: ModelGovernorConfig.() -> Unit = {}) = ModelGovernorConfig().apply {
+        initialLimit = 2
+        minLimit = 1
+        maxLimit = 64
+        backoffRatio = 0.5
+        latencyTolerance = 2.0
+    }.apply(block)
+
+    @Test
+    fun waitersAreAdmittedInOrderWhenPermitsAreReleased() = runBlocking {
+        val limiter = AdaptiveLimiter(config())
+        limiter.acquire()
+        limiter.acquire()
+        val admitted = mutableListOf<Int>()
+        val first = launch(start = CoroutineStart.UNDISPATCHED) { limiter.acquire(); admitted += 1 }
+        val second = launch(start = CoroutineStart.UNDISPATCHED) { limiter.acquire(); admitted += 2 }
+        Assertions.assertEquals(2, limiter.waiting)
+
+        limiter.release(100, CallOutcome.CLIENT)
+        first.join()
+        Assertions.assertEquals(listOf(1), admitted)
+        Assertions.assertEquals(1, limiter.waiting)
+
+        limiter.release(100, CallOutcome.CLIENT)
+        second.join()
+        Assertions.assertEquals(listOf(1, 2), admitted)
+        Assertions.assertEquals(2, limiter.inFlight)
+    }
+
+    @Test
+    fun cancelledWaiterDoesNotLeakAPermit() = runBlocking {
+        val limiter = AdaptiveLimiter(config())
+        limiter.acquire()
+        limiter.acquire()
+        val waiter = launch(start = CoroutineStart.UNDISPATCHED) { limiter.acquire() }
+        Assertions.assertEquals(1, limiter.waiting)
+
+        waiter.cancelAndJoin()
+        Assertions.assertEquals(0, limiter.waiting)
+        Assertions.assertEquals(2, limiter.inFlight)
+
+        limiter.release(100, null)
+        limiter.release(100, null)
+        Assertions.assertEquals(0, limiter.inFlight)
+    }
+
+    @Test
+    fun overloadBacksOffOncePerInterval() = runBlocking {
+        val limiter = AdaptiveLimiter(config { initialLimit = 16 })
+        repeat(2) { limiter.acquire() }
+
+        limiter.release(100, CallOutcome.OVERLOAD)
+        Assertions.assertEquals(8, limiter.limit)
+
+        // 同一次拥塞在一个往返内只回退一次
+        limiter.release(100, CallOutcome.OVERLOAD)
+        Assertions.assertEquals(8, limiter.limit)
+    }
+
+    @Test
+    fun backoffNeverGoesBelowMinimum() = runBlocking {
+        val limiter = AdaptiveLimiter(config { initialLimit = 1; minLimit = 1 })
+        limiter.acquire()
+        limiter.release(100, CallOutcome.TRANSIENT)
+        Assertions.assertEquals(1, limiter.limit)
+    }
+
+    @Test
+    fun successGrowsTheLimitAdditively() = runBlocking {
+        val limiter = AdaptiveLimiter(config { initialLimit = 2 })
+        repeat(4) {
+            limiter.acquire()
+            limiter.release(100, CallOutcome.SUCCESS)
+        }
+        Assertions.assertEquals(3, limiter.limit)
+    }
+
+    @Test
+    fun latencyBaselineIsTrackedPerSizeClass() = runBlocking {
+        val limiter = AdaptiveLimiter(config { initialLimit = 20 })
+        repeat(5) {
+            limiter.acquire()
+            limiter.release(1_000, CallOutcome.SUCCESS, "1K")
+        }
+        val before = limiter.limit
+
+        // 4K 请求正常耗时远高于 1K，不应被当作排队积压
+        limiter.acquire()
+        limiter.release(6_000, CallOutcome.SUCCESS, "4K")
+        Assertions.assertTrue(limiter.limit >= before)
+        Assertions.assertEquals(setOf("1K", "4K"), limiter.avgLatencyMs.keys)
+
+        // 1K 请求同样的耗时则明显异常，收缩上限
+        limiter.acquire()
+        limiter.release(6_000, CallOutcome.SUCCESS, "1K")
+        Assertions.assertTrue(limiter.limit < before)
+    }
+}
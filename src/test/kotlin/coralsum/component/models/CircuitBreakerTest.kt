@@ -0,0 +1,128 @@
+package coralsum.component.models
+
+import coralsum.component.excption.TooManyRequestsException
+import coralsum.config.ModelGovernorConfig
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+
+class CircuitBreakerTest {
+
+    // openSeconds = 0：打开后下一次获取即进入半开，便于验证探测计数
+    private fun config(block: ModelGovernorConfig.() -> Unit = {}) = ModelGovernorConfig().apply {
+        slidingWindowSize = 4
+        minimumCalls = 4
+        failureRateThreshold = 0.5
+        openSeconds = 0
+        halfOpenProbes = 2
+    }.apply(block)
+
+    private fun CircuitBreaker.trip() {
+        repeat(4) {
+            val probe = acquire()
+            onResult(CallOutcome.OVERLOAD, probe)
+        }
+    }
+
+    @Test
+    fun opensWhenFailureRateReachesThreshold() {
+        val breaker = CircuitBreaker(config { openSeconds = 30 })
+        repeat(2) { breaker.onResult(CallOutcome.SUCCESS, breaker.acquire()) }
+        repeat(2) { breaker.onResult(CallOutcome.TRANSIENT, breaker.acquire()) }
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.state)
+
+        val e = assertThrows<TooManyRequestsException> { breaker.acquire() }
+        Assertions.assertTrue(e.retryAfterSeconds!! >= 1)
+        Assertions.assertEquals(1, breaker.rejected)
+    }
+
+    @Test
+    fun clientErrorsDoNotCountTowardsFailureRate() {
+        val breaker = CircuitBreaker(config())
+        repeat(10) { breaker.onResult(CallOutcome.CLIENT, breaker.acquire()) }
+        repeat(10) { breaker.onResult(CallOutcome.KEY_QUOTA, breaker.acquire()) }
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.state)
+    }
+
+    @Test
+    fun halfOpenAdmitsOnlyConfiguredProbes() {
+        val breaker = CircuitBreaker(config())
+        breaker.trip()
+
+        Assertions.assertTrue(breaker.acquire())
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state)
+        Assertions.assertTrue(breaker.acquire())
+        assertThrows<TooManyRequestsException> { breaker.acquire() }
+    }
+
+    @Test
+    fun cancelledOrClientProbeReturnsItsSlot() {
+        val breaker = CircuitBreaker(config())
+        breaker.trip()
+
+        val first = breaker.acquire()
+        val second = breaker.acquire()
+        breaker.onResult(null, first)
+        breaker.onResult(CallOutcome.CLIENT, second)
+
+        // 两个探测额度都已归还，仍可再放行两次
+        Assertions.assertTrue(breaker.acquire())
+        Assertions.assertTrue(breaker.acquire())
+    }
+
+    @Test
+    fun closesAfterAllProbesSucceed() {
+        val breaker = CircuitBreaker(config())
+        breaker.trip()
+
+        val probes = listOf(breaker.acquire(), breaker.acquire())
+        breaker.onResult(CallOutcome.SUCCESS, probes[0])
+        Assertions.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state)
+        breaker.onResult(CallOutcome.SUCCESS, probes[1])
+        Assertions.assertEquals(CircuitBreaker.State.CLOSED, breaker.state)
+        Assertions.assertFalse(breaker.acquire())
+    }
+
+    @Test
+    fun failedProbeReopensFromHalfOpen() {
+        val breaker = CircuitBreaker(config())
+        breaker.trip()
+
+        val probe = breaker.acquire()
+        breaker.onResult(CallOutcome.TRANSIENT, probe)
+        Assertions.assertEquals(CircuitBreaker.State.OPEN, breaker.state)
+    }
+
+    @Test
+    fun probeCancelledWhileWaitingForLimiterIsReturned() = runBlocking {
+        val lane = ModelLane("test", config {
+            initialLimit = 1
+            minLimit = 1
+            maxLimit = 1
+            maxAttempts = 1
+        })
+        repeat(4) { assertThrows<IOException> { runBlocking { lane.call("1K") { throw IOException("down") } } } }
+        Assertions.assertEquals("OPEN", lane.stats().breaker)
+
+        // 第一个探测占住唯一的并发额度，第二个探测在限流器中等待时被取消
+        val gate = CompletableDeferred<Unit>()
+        val holder = launch(start = CoroutineStart.UNDISPATCHED) { lane.call("1K") { gate.await() } }
+        val waiter = launch(start = CoroutineStart.UNDISPATCHED) { lane.call("1K") { } }
+        Assertions.assertEquals(1, lane.stats().waiting)
+        waiter.cancelAndJoin()
+
+        gate.complete(Unit)
+        holder.join()
+        Assertions.assertEquals("HALF_OPEN", lane.stats().breaker)
+
+        // 被取消的探测已归还额度，这次调用仍作为探测放行并完成半开
+        lane.call("1K") { }
+        Assertions.assertEquals("CLOSED", lane.stats().breaker)
+    }
+}
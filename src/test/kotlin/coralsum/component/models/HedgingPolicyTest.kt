@@ -0,0 +1,159 @@
+package coralsum.component.models
+
+import coralsum.common.enums.ModelType
+import coralsum.config.HedgeConfig
+import coralsum.config.ModelGovernorConfig
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+class HedgingPolicyTest {
+
+    // 一个样本即可开始对冲，耗时样本都很短，对冲等待时间取下限 50ms
+    private fun config(block: HedgeConfig.() -> Unit = {}) = HedgeConfig().apply {
+        enabled = true
+        windowSize = 10
+        minSamples = 1
+        minDelayMillis = 50
+        budgetPercent = 100.0
+    }.apply(block)
+
+    private fun policy(
+        config: HedgeConfig = config(),
+        governor: ModelCallGovernor = ModelCallGovernor(ModelGovernorConfig()),
+    ) = HedgingPolicy(config, governor)
+
+    private suspend fun HedgingPolicy.warmUp() {
+        run(ModelType.BASIC) { "warm" }
+    }
+
+    @Test
+    fun fastCallIsNotHedged() = runBlocking {
+        val policy = policy()
+        policy.warmUp()
+
+        val result = policy.run(ModelType.BASIC) { "primary" }
+        Assertions.assertEquals("primary", result.value)
+        Assertions.assertFalse(result.hedged)
+        Assertions.assertEquals(0L, policy.stats().hedges)
+    }
+
+    @Test
+    fun backupWinsAndCancelsStalledPrimary() = runBlocking {
+        val policy = policy()
+        policy.warmUp()
+        val attempts = AtomicInteger()
+        val primaryCancelled = CompletableDeferred<Unit>()
+
+        val result = policy.run(ModelType.BASIC) {
+            if (attempts.incrementAndGet() == 1) {
+                try {
+                    awaitCancellation()
+                } finally {
+                    primaryCancelled.complete(Unit)
+                }
+            }
+            "backup"
+        }
+        Assertions.assertEquals("backup", result.value)
+        Assertions.assertTrue(result.hedged)
+        Assertions.assertTrue(primaryCancelled.isCompleted)
+        Assertions.assertEquals(1L, policy.stats().hedges)
+        Assertions.assertEquals(1L, policy.stats().hedgeWins)
+    }
+
+    @Test
+    fun failedPrimaryWaitsForBackup() = runBlocking {
+        val policy = policy()
+        policy.warmUp()
+        val attempts = AtomicInteger()
+
+        // 原请求先完成但失败，不应直接抛出，而是等待对冲请求
+        val result = policy.run(ModelType.BASIC) {
+            if (attempts.incrementAndGet() == 1) {
+                delay(200)
+                throw IOException("primary")
+            }
+            delay(400)
+            "backup"
+        }
+        Assertions.assertEquals("backup", result.value)
+        Assertions.assertEquals(1L, policy.stats().hedgeWins)
+    }
+
+    @Test
+    fun bothFailingRethrowsTheFirstFailure() = runBlocking {
+        val policy = policy()
+        policy.warmUp()
+        val attempts = AtomicInteger()
+
+        val e = assertThrows<IOException> {
+            runBlocking {
+                policy.run(ModelType.BASIC) {
+                    if (attempts.incrementAndGet() == 1) {
+                        delay(200)
+                        throw IOException("primary")
+                    }
+                    delay(400)
+                    throw IOException("backup")
+                }
+            }
+        }
+        Assertions.assertEquals("primary", e.message)
+        Assertions.assertEquals(0L, policy.stats().hedgeWins)
+    }
+
+    @Test
+    fun exhaustedBudgetSkipsTheHedge() = runBlocking {
+        val policy = policy(config { budgetPercent = 0.0 })
+        policy.warmUp()
+
+        val result = policy.run(ModelType.BASIC) { delay(200); "primary" }
+        Assertions.assertEquals("primary", result.value)
+        Assertions.assertFalse(result.hedged)
+        Assertions.assertEquals(1L, policy.stats().budgetDenied)
+    }
+
+    @Test
+    fun congestedLaneSkipsTheHedge() = runBlocking {
+        val governor = ModelCallGovernor(ModelGovernorConfig().apply {
+            initialLimit = 1
+            minLimit = 1
+            maxLimit = 1
+        })
+        val policy = policy(governor = governor)
+        policy.warmUp()
+
+        // 一个调用占住唯一的并发额度，另一个在排队
+        val gate = CompletableDeferred<Unit>()
+        val holder = launch(start = CoroutineStart.UNDISPATCHED) { governor.call(ModelType.BASIC) { gate.await() } }
+        val waiter = launch(start = CoroutineStart.UNDISPATCHED) { governor.call(ModelType.BASIC) { } }
+        Assertions.assertTrue(governor.hasWaiters(ModelType.BASIC))
+
+        val result = policy.run(ModelType.BASIC) { delay(200); "primary" }
+        Assertions.assertFalse(result.hedged)
+        Assertions.assertEquals(1L, policy.stats().congestionSkipped)
+
+        gate.complete(Unit)
+        joinAll(holder, waiter)
+    }
+
+    @Test
+    fun proModelIsNeverHedged() = runBlocking {
+        val policy = policy()
+        policy.warmUp()
+
+        val result = policy.run(ModelType.PRO) { delay(200); "pro" }
+        Assertions.assertFalse(result.hedged)
+        Assertions.assertEquals(1L, policy.stats().calls)
+    }
+}
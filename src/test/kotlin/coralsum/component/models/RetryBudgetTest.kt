@@ -0,0 +1,53 @@
+package coralsum.component.models
+
+import coralsum.config.ModelGovernorConfig
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+
+class RetryBudgetTest {
+
+    private fun config(ratio: Double, perSecond: Double) = ModelGovernorConfig().apply {
+        retryBudgetRatio = ratio
+        minRetriesPerSecond = perSecond
+    }
+
+    @Test
+    fun startsFullAndStopsWhenDrained() {
+        val budget = RetryBudget(config(ratio = 0.1, perSecond = 0.0))
+        repeat(10) { Assertions.assertTrue(budget.tryWithdraw()) }
+        Assertions.assertFalse(budget.tryWithdraw())
+    }
+
+    @Test
+    fun depositsAccumulateByRatio() {
+        val budget = RetryBudget(config(ratio = 0.1, perSecond = 0.0))
+        repeat(10) { budget.tryWithdraw() }
+
+        repeat(9) { budget.deposit() }
+        Assertions.assertFalse(budget.tryWithdraw())
+        // 第 10 个首次请求凑满 1 个重试额度（浮点累加留出余量）
+        repeat(2) { budget.deposit() }
+        Assertions.assertTrue(budget.tryWithdraw())
+        Assertions.assertFalse(budget.tryWithdraw())
+    }
+
+    @Test
+    fun depositsAreCappedAtCapacity() {
+        val budget = RetryBudget(config(ratio = 1.0, perSecond = 0.0))
+        repeat(100) { budget.deposit() }
+        repeat(10) { Assertions.assertTrue(budget.tryWithdraw()) }
+        Assertions.assertFalse(budget.tryWithdraw())
+    }
+
+    @Test
+    fun refillsOverTime() {
+        // 容量为 每秒恢复量 * 10
+        val budget = RetryBudget(config(ratio = 0.0, perSecond = 200.0))
+        var drained = 0
+        while (budget.tryWithdraw()) drained++
+        Assertions.assertTrue(drained >= 2000)
+
+        Thread.sleep(50)
+        Assertions.assertTrue(budget.tryWithdraw())
+    }
+}
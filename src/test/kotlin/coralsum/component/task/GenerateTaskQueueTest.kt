@@ -0,0 +1,191 @@
+package coralsum.component.task
+
+import coralsum.common.enums.GenTaskStatue
+import coralsum.common.enums.GenTaskType
+import coralsum.common.enums.MembershipTier
+import coralsum.component.concurrent.FairShareScheduler
+import coralsum.config.FairShareConfig
+import coralsum.config.GenerateTaskConfig
+import coralsum.config.GeneratorConfig
+import coralsum.infrastructure.entity.GenerateTask
+import coralsum.infrastructure.repository.GenerateTaskRepository
+import coralsum.service.GenResult
+import coralsum.service.GenTaskEvent
+import io.micronaut.json.JsonMapper
+import jakarta.inject.Provider
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions
+import org.junit.jupiter.api.Test
+import java.lang.reflect.Proxy
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class GenerateTaskQueueTest {
+
+    private class Handler : GenerateTaskHandler {
+        val handled = AtomicInteger()
+
+        @Volatile
+        var failure: Exception? = null
+
+        @Volatile
+        var tierFailure: Exception? = null
+
+        override suspend fun handle(task: GenerateTask): GenResult {
+            handled.incrementAndGet()
+            failure?.let { throw it }
+            return GenResult(inputTokens = 1, outputTokens = 1, durationMs = 1, images = listOf("image"))
+        }
+
+        override suspend fun tierOf(uid: String): MembershipTier {
+            tierFailure?.let { throw it }
+            return MembershipTier.FREE
+        }
+    }
+
+    private val store = ConcurrentHashMap<Long, GenerateTask>()
+
+    @Volatile
+    private var storageDown = false
+
+    /**
+     * 只实现队列用到的方法，按值存取模拟数据库行
+     */
+    private val repository = Proxy.newProxyInstance(
+        javaClass.classLoader,
+        arrayOf(GenerateTaskRepository::class.java)
+    ) { proxy, method, args ->
+        when (method.name) {
+            "findById" -> {
+                if (storageDown) throw IllegalStateException("storage down")
+                store[args!![0] as Long]?.copy()
+            }
+
+            "update" -> (args!![0] as GenerateTask).also { store[it.id!!] = it.copy() }
+            "findAllByStatusInOrderByIdAsc" -> {
+                @Suppress("UNCHECKED_CAST")
+                val statuses = args!![0] as List<GenTaskStatue>
+                store.values.filter { it.status in statuses }.sortedBy { it.id }.map { it.copy() }
+            }
+
+            "toString" -> "GenerateTaskRepository(in-memory)"
+            "hashCode" -> System.identityHashCode(proxy)
+            else -> throw UnsupportedOperationException(method.name)
+        }
+    } as GenerateTaskRepository
+
+    private val handler = Handler()
+    private val events = GenerateTaskEvents()
+    private val config = GenerateTaskConfig().apply {
+        workers = 2
+        maxAttempts = 2
+        shutdownTimeoutSeconds = 5
+    }
+    private val queue = GenerateTaskQueue(
+        config = config,
+        repository = repository,
+        jsonMapper = JsonMapper.createDefault(),
+        handler = Provider { handler },
+        events = events,
+        scheduler = FairShareScheduler(FairShareConfig(), GeneratorConfig(), config),
+    )
+
+    @AfterEach
+    fun close() {
+        queue.close()
+    }
+
+    private fun task(id: Long, status: GenTaskStatue, attempts: Int = 0) {
+        store[id] = GenerateTask(
+            id = id,
+            sid = "sid-$id",
+            uid = "user",
+            taskType = GenTaskType.GENERATE,
+            status = status,
+            payload = "{}",
+            attempts = attempts,
+        )
+    }
+
+    /**
+     * 先订阅再恢复队列，事件总线不回放
+     */
+    private fun CoroutineScope.terminalEvent(id: Long): Deferred<GenTaskEvent> = async(start = CoroutineStart.UNDISPATCHED) {
+        withTimeout(5_000) { events.subscribe("user", "sid-$id").first { it.terminal } }
+    }
+
+    @Test
+    fun interruptedTaskIsRequeuedAndCompleted() = runBlocking {
+        task(1, GenTaskStatue.PROCESSING, attempts = 1)
+        val terminal = terminalEvent(1)
+        queue.resume()
+
+        Assertions.assertEquals(GenTaskStatue.COMPLETED, terminal.await().status)
+        val row = store[1]!!
+        Assertions.assertEquals(GenTaskStatue.COMPLETED, row.status)
+        Assertions.assertEquals(2, row.attempts)
+        Assertions.assertNotNull(queue.result(row))
+        Assertions.assertEquals(1, queue.stats().resumed.toInt())
+    }
+
+    @Test
+    fun taskOutOfAttemptsFailsOnResume() = runBlocking {
+        task(1, GenTaskStatue.PROCESSING, attempts = 2)
+        val terminal = terminalEvent(1)
+        queue.resume()
+
+        Assertions.assertEquals(GenTaskStatue.FAILED, terminal.await().status)
+        Assertions.assertEquals(GenTaskStatue.FAILED, store[1]!!.status)
+        Assertions.assertEquals(0, handler.handled.get())
+        Assertions.assertEquals(0, queue.stats().resumed.toInt())
+    }
+
+    @Test
+    fun handlerFailureMarksTaskFailed() = runBlocking {
+        handler.failure = IllegalStateException("boom")
+        task(1, GenTaskStatue.QUEUED)
+        val terminal = terminalEvent(1)
+        queue.resume()
+
+        Assertions.assertEquals(GenTaskStatue.FAILED, terminal.await().status)
+        val row = store[1]!!
+        Assertions.assertEquals(GenTaskStatue.FAILED, row.status)
+        Assertions.assertEquals("boom", row.errorMessage)
+        Assertions.assertNotNull(row.finishTime)
+        // 终态事件先于计数发布，等任务协程结束后再读统计
+        queue.close()
+        Assertions.assertEquals(1, queue.stats().failed.toInt())
+    }
+
+    @Test
+    fun tierLookupFailureFallsBackToFreeTier() = runBlocking {
+        handler.tierFailure = IllegalStateException("points unavailable")
+        task(1, GenTaskStatue.QUEUED)
+        val terminal = terminalEvent(1)
+        queue.resume()
+
+        Assertions.assertEquals(GenTaskStatue.COMPLETED, terminal.await().status)
+        Assertions.assertEquals(1, handler.handled.get())
+    }
+
+    @Test
+    fun storageFailureStillPublishesTerminalEvent() = runBlocking {
+        task(1, GenTaskStatue.QUEUED)
+        val terminal = terminalEvent(1)
+        storageDown = true
+        queue.resume()
+
+        // 落库失败时任务行保持排队，下次启动恢复；客户端仍收到失败事件而不是一直等待
+        Assertions.assertEquals(GenTaskStatue.FAILED, terminal.await().status)
+        Assertions.assertEquals(GenTaskStatue.QUEUED, store[1]!!.status)
+        Assertions.assertEquals(0, handler.handled.get())
+        Assertions.assertEquals(1, queue.stats().failed.toInt())
+    }
+}